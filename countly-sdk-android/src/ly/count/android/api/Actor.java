@@ -0,0 +1,119 @@
+package ly.count.android.api;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * Single background thread that owns the event queue and the session
+ * bookkeeping.
+ *
+ * Callers hand work over through a lock-free multi-producer queue and return
+ * right away; the actor thread runs it in order and parks while there is
+ * nothing to do. {@link #offer(Runnable)} is bounded so a runaway producer can't
+ * grow the mailbox without limit, while {@link #post(Runnable)} always accepts
+ * and is meant for rare control messages such as session start and stop.
+ */
+class Actor {
+    protected static final int DEFAULT_CAPACITY = 1000;
+
+    private final ConcurrentLinkedQueue<Runnable> mailbox_ = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger size_ = new AtomicInteger();
+    private final AtomicBoolean sleeping_ = new AtomicBoolean();
+    private final int capacity_;
+    private final Thread thread_;
+    private volatile boolean stopped_;
+
+    public Actor(String name) {
+        this(name, DEFAULT_CAPACITY);
+    }
+
+    public Actor(String name, int capacity) {
+        capacity_ = capacity;
+        thread_ = new Thread(name) {
+            @Override
+            public void run() {
+                loop();
+            }
+        };
+        thread_.setDaemon(true);
+        thread_.start();
+    }
+
+    /**
+     * Queues a message unless the mailbox is full. Returns false if the
+     * message was dropped.
+     */
+    public boolean offer(Runnable message) {
+        if (size_.incrementAndGet() > capacity_) {
+            size_.decrementAndGet();
+            return false;
+        }
+
+        enqueue(message);
+        return true;
+    }
+
+    /**
+     * Queues a message regardless of the mailbox capacity.
+     */
+    public void post(Runnable message) {
+        size_.incrementAndGet();
+        enqueue(message);
+    }
+
+    /**
+     * Number of queued messages, including those posted past the capacity.
+     */
+    public int size() {
+        return size_.get();
+    }
+
+    public int capacity() {
+        return capacity_;
+    }
+
+    /**
+     * Ends the actor thread once the message being run, if any, returns.
+     * Messages still queued are never run. The SDK's actor lives as long as
+     * the process; this is for benchmarks and tests that create their own.
+     */
+    public void stop() {
+        stopped_ = true;
+        LockSupport.unpark(thread_);
+    }
+
+    private void enqueue(Runnable message) {
+        mailbox_.offer(message);
+
+        if (sleeping_.get() && sleeping_.compareAndSet(true, false))
+            LockSupport.unpark(thread_);
+    }
+
+    private void loop() {
+        while (!stopped_) {
+            Runnable message = mailbox_.poll();
+
+            if (message != null) {
+                size_.decrementAndGet();
+                try {
+                    message.run();
+                } catch (RuntimeException e) {
+                    Log.e("Countly", "Error while processing " + message, e);
+                }
+                continue;
+            }
+
+            // Announce the intent to sleep before the final check, so a
+            // producer either sees the flag and unparks us, or we see its
+            // message here.
+            sleeping_.set(true);
+            if (mailbox_.isEmpty() && !stopped_)
+                LockSupport.park(this);
+            sleeping_.set(false);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package ly.count.android.api;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+/**
+ * {@link UploadHost} on Android.
+ *
+ * Connectivity comes from ConnectivityManager and needs the
+ * ACCESS_NETWORK_STATE permission; without it the network is assumed to be
+ * connected and unmetered. Wake-ups are non-waking RTC alarms delivered to
+ * {@link UploadReceiver}, so they survive the process and are delivered along
+ * with the device's next wake-up instead of forcing one.
+ */
+class AndroidUploadHost implements UploadHost {
+    private final Context context_;
+    private final String instance_;
+    private final ConnectivityManager connectivity_;
+    private final AlarmManager alarms_;
+    private final boolean readsNetworkState_;
+    private volatile Runnable listener_;
+
+    private final BroadcastReceiver receiver_ = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Runnable listener = listener_;
+            if (listener != null) listener.run();
+        }
+    };
+
+    /**
+     * Wake-ups are delivered to the Countly instance called instance.
+     */
+    public AndroidUploadHost(Context context, String instance) {
+        context_ = context.getApplicationContext();
+        instance_ = instance;
+        connectivity_ = (ConnectivityManager) context_.getSystemService(Context.CONNECTIVITY_SERVICE);
+        alarms_ = (AlarmManager) context_.getSystemService(Context.ALARM_SERVICE);
+
+        readsNetworkState_ = connectivity_ != null && context_.checkCallingOrSelfPermission(
+                "android.permission.ACCESS_NETWORK_STATE") == PackageManager.PERMISSION_GRANTED;
+        if (!readsNetworkState_)
+            Log.w("Countly", "ACCESS_NETWORK_STATE permission missing, uploads ignore connectivity");
+
+        context_.registerReceiver(receiver_, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    @Override
+    public boolean isConnected() {
+        if (!readsNetworkState_) return true;
+
+        NetworkInfo info = connectivity_.getActiveNetworkInfo();
+        return info != null && info.isConnected();
+    }
+
+    @Override
+    public boolean isMetered() {
+        if (!readsNetworkState_) return false;
+
+        NetworkInfo info = connectivity_.getActiveNetworkInfo();
+        if (info == null) return false;
+
+        int type = info.getType();
+        return type != ConnectivityManager.TYPE_WIFI && type != ConnectivityManager.TYPE_ETHERNET;
+    }
+
+    @Override
+    public void setListener(Runnable listener) {
+        listener_ = listener;
+    }
+
+    @Override
+    public void scheduleWakeUp(long time) {
+        if (alarms_ != null) alarms_.set(AlarmManager.RTC, time, wakeUpIntent());
+    }
+
+    @Override
+    public void cancelWakeUp() {
+        if (alarms_ != null) alarms_.cancel(wakeUpIntent());
+    }
+
+    /**
+     * The action differs per instance so that each instance has its own alarm;
+     * extras alone don't tell pending intents apart.
+     */
+    private PendingIntent wakeUpIntent() {
+        Intent intent = new Intent(context_, UploadReceiver.class);
+        intent.setAction(UploadReceiver.ACTION_UPLOAD + "." + instance_);
+        intent.putExtra(UploadReceiver.EXTRA_INSTANCE, instance_);
+        return PendingIntent.getBroadcast(context_, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+}
@@ -0,0 +1,32 @@
+package ly.count.android.api;
+
+/**
+ * How close the SDK's queues are to their limits, as reported by
+ * Countly.backpressure().
+ */
+public enum Backpressure {
+    /**
+     * There is plenty of room.
+     */
+    NONE,
+
+    /**
+     * A queue is more than three quarters full; callers recording at a high
+     * rate should slow down.
+     */
+    HIGH,
+
+    /**
+     * A queue is full. Recording more data evicts stored data, and
+     * tryRecordEvent sheds the new event instead.
+     */
+    FULL;
+
+    private static final float HIGH_USAGE = 0.75f;
+
+    static Backpressure forUsage(float usage) {
+        if (usage >= 1) return FULL;
+        if (usage >= HIGH_USAGE) return HIGH;
+        return NONE;
+    }
+}
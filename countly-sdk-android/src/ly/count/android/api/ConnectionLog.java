@@ -0,0 +1,566 @@
+package ly.count.android.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.util.Log;
+
+/**
+ * Append-only, segmented on-disk log of queued connection requests.
+ *
+ * Every record is a 4-byte length, a flags byte and the UTF-8 bytes of the
+ * request. The low bit of the flags byte marks a removed record and the
+ * remaining bits hold the record format version. New records go to the end of
+ * the tail segment, which rolls over to a new file once it grows past the
+ * segment size. Removing a record only flips its flag in place; the persisted
+ * read cursor then moves past all removed records at the head of the log, and
+ * segments left behind the cursor are deleted.
+ *
+ * {@link #rewrite(List)} replaces the whole log: the new records are written to
+ * a .compact file numbered past the tail, the cursor is moved onto it, which is
+ * the commit point, and only then is it renamed into place and the old
+ * segments deleted. Opening the log finishes or discards an interrupted rewrite.
+ */
+class ConnectionLog {
+    private static final String TAG = "COUNTLY_STORE";
+    private static final String SEGMENT_PREFIX = "connections-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String COMPACT_SUFFIX = ".compact";
+    private static final String CURSOR_FILE = "connections.cursor";
+    private static final int HEADER_SIZE = 5;
+    private static final int FORMAT_VERSION = 1;
+    private static final int FLAG_REMOVED = 1;
+
+    protected static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+    private final File dir_;
+    private final int segmentSize_;
+    private final byte[] header_ = new byte[HEADER_SIZE];
+    private byte[] appendBuffer_ = new byte[256];
+
+    private long readSegment_;
+    private long readOffset_;
+    private long writeSegment_;
+    private RandomAccessFile writer_;
+    private int count_;
+    private long bytes_;
+
+    public ConnectionLog(File dir) {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public ConnectionLog(File dir, int segmentSize) {
+        dir_ = dir;
+        segmentSize_ = segmentSize;
+
+        if (!dir_.exists() && !dir_.mkdirs())
+            Log.e(TAG, "Cannot create connection log directory " + dir_);
+
+        open();
+    }
+
+    public synchronized void append(String data) {
+        byte[] bytes = utf8(data);
+        append(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Appends length bytes of UTF-8 data starting at offset. The bytes are
+     * copied, so the caller may reuse its buffer.
+     */
+    public synchronized void append(byte[] data, int offset, int length) {
+        int size = HEADER_SIZE + length;
+        if (appendBuffer_.length < size)
+            appendBuffer_ = new byte[Math.max(size, appendBuffer_.length * 2)];
+
+        writeInt(appendBuffer_, 0, length);
+        appendBuffer_[4] = (byte) (FORMAT_VERSION << 1);
+        System.arraycopy(data, offset, appendBuffer_, HEADER_SIZE, length);
+
+        try {
+            long fileLength = writer_.length();
+            if (fileLength > 0 && fileLength + size > segmentSize_) {
+                writer_.close();
+                writeSegment_++;
+                writer_ = new RandomAccessFile(segmentFile(writeSegment_), "rw");
+                fileLength = 0;
+
+                if (readSegment_ == writeSegment_ - 1 && readOffset_ >= segmentLength(readSegment_)) {
+                    segmentFile(readSegment_).delete();
+                    readSegment_ = writeSegment_;
+                    readOffset_ = 0;
+                    writeCursor();
+                }
+            }
+
+            writer_.seek(fileLength);
+            writer_.write(appendBuffer_, 0, size);
+
+            count_++;
+            bytes_ += length;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot append to connection log", e);
+        }
+    }
+
+    public synchronized String[] readAll() {
+        return read(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns up to max live records from the head of the log, oldest first.
+     */
+    public synchronized String[] read(int max) {
+        List<String> result = new ArrayList<String>();
+
+        for (long segment = readSegment_; segment <= writeSegment_ && result.size() < max; segment++) {
+            File file = segmentFile(segment);
+            if (!file.exists()) continue;
+
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "r");
+                long offset = segment == readSegment_ ? readOffset_ : 0;
+                long end = raf.length();
+
+                while (offset + HEADER_SIZE <= end && result.size() < max) {
+                    raf.seek(offset);
+                    raf.readFully(header_);
+                    int length = readInt(header_, 0);
+                    if (!isWhole(length, offset, end)) break;
+
+                    if ((header_[4] & FLAG_REMOVED) == 0) {
+                        byte[] bytes = new byte[length];
+                        raf.readFully(bytes);
+                        result.add(new String(bytes, "UTF-8"));
+                    }
+
+                    offset += HEADER_SIZE + length;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot read connection log segment " + file, e);
+            } finally {
+                close(raf);
+            }
+        }
+
+        return result.toArray(new String[result.size()]);
+    }
+
+    public synchronized boolean isEmpty() {
+        return count_ == 0;
+    }
+
+    /**
+     * Number of live records, kept in memory and rebuilt when the log is opened.
+     */
+    public synchronized int size() {
+        return count_;
+    }
+
+    /**
+     * Total UTF-8 size of the live records, excluding record headers.
+     */
+    public synchronized long byteSize() {
+        return bytes_;
+    }
+
+    /**
+     * Marks the first live record equal to data as removed and moves the read
+     * cursor past any removed records at the head of the log.
+     */
+    public synchronized boolean remove(String data) {
+        return remove(Collections.singletonList(data)) > 0;
+    }
+
+    /**
+     * Removes one live record for every entry of records, oldest matches first,
+     * in a single pass over the log. Returns the number of records removed.
+     */
+    public synchronized int remove(Collection<String> records) {
+        Map<String, Integer> pending = new HashMap<String, Integer>();
+        Set<Integer> lengths = new HashSet<Integer>();
+        for (String data : records) {
+            Integer n = pending.get(data);
+            pending.put(data, n == null ? 1 : n + 1);
+            lengths.add(utf8(data).length);
+        }
+
+        int removed = 0;
+
+        for (long segment = readSegment_; segment <= writeSegment_ && !pending.isEmpty(); segment++) {
+            File file = segmentFile(segment);
+            if (!file.exists()) continue;
+
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "rw");
+                long offset = segment == readSegment_ ? readOffset_ : 0;
+                long end = raf.length();
+
+                while (offset + HEADER_SIZE <= end && !pending.isEmpty()) {
+                    raf.seek(offset);
+                    raf.readFully(header_);
+                    int length = readInt(header_, 0);
+                    if (!isWhole(length, offset, end)) break;
+
+                    if ((header_[4] & FLAG_REMOVED) == 0 && lengths.contains(length)) {
+                        byte[] bytes = new byte[length];
+                        raf.readFully(bytes);
+                        String candidate = new String(bytes, "UTF-8");
+
+                        Integer n = pending.get(candidate);
+                        if (n != null) {
+                            raf.seek(offset + 4);
+                            raf.write(header_[4] | FLAG_REMOVED);
+                            removed++;
+                            count_--;
+                            bytes_ -= length;
+
+                            if (n == 1) pending.remove(candidate);
+                            else pending.put(candidate, n - 1);
+                        }
+                    }
+
+                    offset += HEADER_SIZE + length;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot update connection log segment " + file, e);
+            } finally {
+                close(raf);
+            }
+        }
+
+        if (removed > 0) advance();
+
+        return removed;
+    }
+
+    /**
+     * Replaces all live records with records, in order.
+     */
+    public synchronized void rewrite(List<String> records) {
+        long segment = writeSegment_ + 1;
+        File compact = new File(dir_, SEGMENT_PREFIX + segment + COMPACT_SUFFIX);
+
+        int count = 0;
+        long bytes = 0;
+
+        boolean written = false;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(compact, "rw");
+            raf.setLength(0);
+            for (String data : records) {
+                byte[] record = record(data);
+                raf.write(record);
+                count++;
+                bytes += record.length - HEADER_SIZE;
+            }
+            raf.getFD().sync();
+            written = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write compacted connection log", e);
+        } finally {
+            close(raf);
+        }
+
+        if (!written) {
+            compact.delete();
+            return;
+        }
+
+        long oldSegment = readSegment_;
+        long lastSegment = writeSegment_;
+
+        close(writer_);
+        readSegment_ = segment;
+        readOffset_ = 0;
+        writeSegment_ = segment;
+        writeCursor();
+
+        if (!compact.renameTo(segmentFile(segment)))
+            Log.e(TAG, "Cannot rename compacted connection log " + compact);
+
+        try {
+            writer_ = new RandomAccessFile(segmentFile(segment), "rw");
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open connection log", e);
+        }
+
+        for (long old = oldSegment; old <= lastSegment; old++) segmentFile(old).delete();
+
+        count_ = count;
+        bytes_ = bytes;
+    }
+
+    private void advance() {
+        long segment = readSegment_;
+        long offset = readOffset_;
+
+        while (true) {
+            File file = segmentFile(segment);
+            long end = file.exists() ? file.length() : 0;
+
+            RandomAccessFile raf = null;
+            try {
+                if (end > offset) {
+                    raf = new RandomAccessFile(file, "r");
+                    while (offset + HEADER_SIZE <= end) {
+                        raf.seek(offset);
+                        raf.readFully(header_);
+                        int length = readInt(header_, 0);
+                        if ((header_[4] & FLAG_REMOVED) == 0 || !isWhole(length, offset, end)) break;
+                        offset += HEADER_SIZE + length;
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot read connection log segment " + file, e);
+                break;
+            } finally {
+                close(raf);
+            }
+
+            if (offset < end || segment >= writeSegment_) break;
+
+            if (!file.delete() && file.exists())
+                Log.e(TAG, "Cannot delete connection log segment " + file);
+            segment++;
+            offset = 0;
+        }
+
+        readSegment_ = segment;
+        readOffset_ = offset;
+        writeCursor();
+    }
+
+    private void open() {
+        finishRewrite();
+
+        long first = -1, last = -1;
+        String[] names = dir_.list();
+        if (names != null) {
+            for (String name : names) {
+                long seq = segmentNumber(name, SEGMENT_SUFFIX);
+                if (seq < 0) continue;
+                if (first < 0 || seq < first) first = seq;
+                if (seq > last) last = seq;
+            }
+        }
+
+        if (first < 0) first = last = 0;
+
+        readSegment_ = first;
+        readOffset_ = 0;
+        readCursor();
+        if (readSegment_ < first || readSegment_ > last) {
+            readSegment_ = first;
+            readOffset_ = 0;
+        }
+
+        for (long segment = first; segment < readSegment_; segment++) segmentFile(segment).delete();
+
+        writeSegment_ = last;
+        try {
+            writer_ = new RandomAccessFile(segmentFile(writeSegment_), "rw");
+            truncateTornRecord();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open connection log", e);
+        }
+
+        countRecords();
+    }
+
+    /**
+     * Completes a rewrite whose cursor was committed before the process died,
+     * or discards one that wasn't.
+     */
+    private void finishRewrite() {
+        String[] names = dir_.list();
+        if (names == null) return;
+
+        for (String name : names) {
+            long segment = segmentNumber(name, COMPACT_SUFFIX);
+            if (segment < 0) continue;
+
+            readSegment_ = -1;
+            readCursor();
+
+            File compact = new File(dir_, name);
+            if (readSegment_ == segment && !segmentFile(segment).exists()) {
+                if (!compact.renameTo(segmentFile(segment)))
+                    Log.e(TAG, "Cannot rename compacted connection log " + compact);
+            } else if (!compact.delete()) {
+                Log.e(TAG, "Cannot delete compacted connection log " + compact);
+            }
+        }
+    }
+
+    private void countRecords() {
+        count_ = 0;
+        bytes_ = 0;
+
+        for (long segment = readSegment_; segment <= writeSegment_; segment++) {
+            File file = segmentFile(segment);
+            if (!file.exists()) continue;
+
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "r");
+                long offset = segment == readSegment_ ? readOffset_ : 0;
+                long end = raf.length();
+
+                while (offset + HEADER_SIZE <= end) {
+                    raf.seek(offset);
+                    raf.readFully(header_);
+                    int length = readInt(header_, 0);
+                    if (!isWhole(length, offset, end)) break;
+
+                    if ((header_[4] & FLAG_REMOVED) == 0) {
+                        count_++;
+                        bytes_ += length;
+                    }
+
+                    offset += HEADER_SIZE + length;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot read connection log segment " + file, e);
+            } finally {
+                close(raf);
+            }
+        }
+    }
+
+    /**
+     * Drops a partially written record left at the tail by a process that died
+     * in the middle of an append, or a tail the file system filled with zeros.
+     */
+    private void truncateTornRecord() throws IOException {
+        long end = writer_.length();
+        long offset = readSegment_ == writeSegment_ ? readOffset_ : 0;
+
+        while (offset + HEADER_SIZE <= end) {
+            writer_.seek(offset);
+            writer_.readFully(header_);
+            int length = readInt(header_, 0);
+            if (!isWhole(length, offset, end)) break;
+            offset += HEADER_SIZE + length;
+        }
+
+        if (offset < end) writer_.setLength(offset);
+    }
+
+    /**
+     * Whether the header read at offset starts a whole record before end. A
+     * length that isn't positive or runs past the end of the segment can only
+     * come from a torn or zero-filled tail; every request has data.
+     */
+    private static boolean isWhole(int length, long offset, long end) {
+        return length > 0 && offset + HEADER_SIZE + length <= end;
+    }
+
+    private void readCursor() {
+        File file = new File(dir_, CURSOR_FILE);
+        if (!file.exists()) return;
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            readSegment_ = raf.readLong();
+            readOffset_ = raf.readLong();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read connection log cursor", e);
+        } finally {
+            close(raf);
+        }
+    }
+
+    private void writeCursor() {
+        byte[] cursor = new byte[16];
+        writeLong(cursor, 0, readSegment_);
+        writeLong(cursor, 8, readOffset_);
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(new File(dir_, CURSOR_FILE), "rw");
+            raf.write(cursor);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write connection log cursor", e);
+        } finally {
+            close(raf);
+        }
+    }
+
+    private long segmentLength(long segment) {
+        File file = segmentFile(segment);
+        return file.exists() ? file.length() : 0;
+    }
+
+    private File segmentFile(long segment) {
+        return new File(dir_, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+    }
+
+    private static long segmentNumber(String name, String suffix) {
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(suffix)) return -1;
+
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static byte[] record(String data) {
+        byte[] bytes = utf8(data);
+        byte[] record = new byte[HEADER_SIZE + bytes.length];
+        writeInt(record, 0, bytes.length);
+        record[4] = (byte) (FORMAT_VERSION << 1);
+        System.arraycopy(bytes, 0, record, HEADER_SIZE, bytes.length);
+        return record;
+    }
+
+    private static byte[] utf8(String data) {
+        try {
+            return data.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return data.getBytes();
+        }
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static void writeLong(byte[] buffer, int offset, long value) {
+        writeInt(buffer, offset, (int) (value >>> 32));
+        writeInt(buffer, offset + 4, (int) value);
+    }
+
+    private static void close(RandomAccessFile raf) {
+        if (raf == null) return;
+
+        try {
+            raf.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot close connection log file", e);
+        }
+    }
+}
@@ -0,0 +1,524 @@
+package ly.count.android.api;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.util.Log;
+
+class ConnectionQueue {
+    private CountlyStore store_;
+    private final Sender sender_ = Sender.sharedInstance();
+    private UploadScheduler scheduler_;
+    private RetryPolicy retry_ = new RetryPolicy();
+    private volatile RequestEncoder encoder_;
+    private DeviceSampler sampler_;
+    private Context context_;
+    private MetricsCache metricsCache_;
+    private volatile String serverURL_;
+    private volatile Transport transport_ = PooledHttpTransport.sharedInstance();
+    private boolean postMode_ = false;
+    private PayloadCodec codec_ = new GzipCodec();
+    private boolean compressionRejected_ = false;
+    private boolean bulkMode_ = false;
+    private int bulkBatchSize_ = DEFAULT_BULK_BATCH_SIZE;
+    private int bulkMaxBodySize_ = DEFAULT_BULK_MAX_BODY_SIZE;
+    private int compactedCount_ = 0;
+    private boolean lastFailed_ = false;
+    private volatile boolean draining_ = false;
+    private final Metrics metrics_ = Metrics.sharedInstance();
+    private final List<Runnable> wakeUps_ = new ArrayList<Runnable>();
+
+    protected static final int DEFAULT_BULK_BATCH_SIZE = 50;
+    protected static final int COMPACT_THRESHOLD = 20;
+    protected static final int DRAIN_BATCH = 20;
+    protected static final int CONGESTED_BACKLOG = 20;
+    protected static final int DEFAULT_BULK_MAX_BODY_SIZE = 64 * 1024;
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+    public void setAppKey(String appKey) {
+        encoder_ = new RequestEncoder(appKey);
+    }
+
+    public void setContext(Context context) {
+        context_ = context;
+    }
+
+    public void setServerURL(String serverURL) {
+        serverURL_ = serverURL;
+    }
+
+    public void setDeviceSampler(DeviceSampler sampler) {
+        sampler_ = sampler;
+    }
+
+    public void setMetricsCache(MetricsCache metricsCache) {
+        metricsCache_ = metricsCache;
+    }
+
+    public void setCountlyStore(CountlyStore countlyStore) {
+        store_ = countlyStore;
+        retry_.setStore(countlyStore);
+    }
+
+    public void setRetryBackoff(long baseDelay, long maxDelay, int failuresToOpen, long openInterval) {
+        retry_.setBackoff(baseDelay, maxDelay, failuresToOpen, openInterval);
+    }
+
+    /**
+     * Must be called after setCountlyStore.
+     */
+    public void setUploadHost(UploadHost host) {
+        scheduler_ = new UploadScheduler(host, store_, new Runnable() {
+            @Override
+            public void run() {
+                wake();
+            }
+        });
+    }
+
+    public void setUploadConstraints(boolean unmeteredOnly, int minBatchSize, long maxDelay) {
+        scheduler_.setConstraints(unmeteredOnly, minBatchSize, maxDelay);
+    }
+
+    /**
+     * Gives the sender a turn for a due wake-up and runs done once it stops
+     * sending for now: the backlog is empty, the network or backoff stops it,
+     * or it fails.
+     */
+    public void onWakeUp(Runnable done) {
+        synchronized (wakeUps_) {
+            wakeUps_.add(done);
+        }
+
+        sender_.signal(this);
+    }
+
+    /**
+     * Requests queued before OpenUDID finished can be sent from now on.
+     */
+    public void onDeviceIdReady() {
+        tick();
+    }
+
+    public void setTransport(Transport transport) {
+        transport_ = transport;
+    }
+
+    public void setHttpTimeouts(int connectTimeout, int readTimeout) {
+        transport_.setTimeouts(connectTimeout, readTimeout);
+    }
+
+    public void setPostMode(boolean enabled) {
+        postMode_ = enabled;
+    }
+
+    public void setPayloadCodec(PayloadCodec codec) {
+        codec_ = codec;
+        compressionRejected_ = false;
+    }
+
+    public void setBulkMode(boolean enabled, int batchSize, int maxBodySize) {
+        bulkMode_ = enabled;
+        bulkBatchSize_ = batchSize;
+        bulkMaxBodySize_ = maxBodySize;
+    }
+
+    public void beginSession() {
+        encoder_.beginSession(System.currentTimeMillis() / 1000, metricsCache_.get());
+        store_.addConnection(encoder_.buffer(), encoder_.length());
+
+        tick();
+    }
+
+    public void updateSession(int duration) {
+        encoder_.updateSession(System.currentTimeMillis() / 1000, duration);
+        store_.addConnection(encoder_.buffer(), encoder_.length());
+
+        tick();
+    }
+
+    public void endSession(int duration) {
+        encoder_.endSession(System.currentTimeMillis() / 1000, duration);
+        store_.addConnection(encoder_.buffer(), encoder_.length());
+
+        tick();
+    }
+
+    public void recordEvents(String events) {
+        encoder_.recordEvents(System.currentTimeMillis() / 1000, events);
+        store_.addConnection(encoder_.buffer(), encoder_.length());
+
+        tick();
+    }
+
+    /**
+     * Keeps sending while the device is sampled out until the backlog is
+     * empty, so that the session just ended for it reaches the server.
+     */
+    public void drainWhileSampledOut() {
+        draining_ = true;
+    }
+
+    /**
+     * Lets the upload scheduler decide whether the backlog is sent now.
+     * Devices that are sampled out send nothing unless they are draining, and
+     * nothing is sent before the server URL and app key are set.
+     */
+    private void tick() {
+        if (isConfigured() && mayUpload())
+            scheduler_.evaluate();
+    }
+
+    private boolean mayUpload() {
+        return sampler_.isSampledIn() || draining_;
+    }
+
+    private boolean isConfigured() {
+        return serverURL_ != null && encoder_ != null;
+    }
+
+    /**
+     * Asks the shared sender worker for a turn if there is anything to send.
+     */
+    private void wake() {
+        if (!store_.isEmptyConnections())
+            sender_.signal(this);
+    }
+
+    /**
+     * Whether uploads are falling behind: the sender is backing off after a
+     * failure or CONGESTED_BACKLOG requests are waiting.
+     */
+    public boolean isCongested() {
+        return retry_.delay() > 0 || store_.connectionCount() >= CONGESTED_BACKLOG;
+    }
+
+    /**
+     * Milliseconds until the retry policy allows the next attempt.
+     */
+    long retryDelay() {
+        return retry_.delay();
+    }
+
+    /**
+     * One turn of the sender worker: sends up to DRAIN_BATCH requests, or bulk
+     * batches, then asks for another turn if more are waiting so the other
+     * instances get theirs in between. Wake-ups waiting for the sender are
+     * finished once a turn ends without asking for another.
+     */
+    void drain() {
+        List<Runnable> wakeUps;
+        synchronized (wakeUps_) {
+            wakeUps = new ArrayList<Runnable>(wakeUps_);
+            wakeUps_.clear();
+        }
+
+        boolean more = false;
+        try {
+            more = sendTurn();
+        } finally {
+            if (more) {
+                synchronized (wakeUps_) {
+                    wakeUps_.addAll(0, wakeUps);
+                }
+                sender_.signal(this);
+            } else {
+                for (Runnable wakeUp : wakeUps) wakeUp.run();
+            }
+        }
+    }
+
+    /**
+     * Returns true if requests that could be sent right away are left.
+     */
+    private boolean sendTurn() {
+        if (!isConfigured() || !mayUpload())
+            return false;
+
+        compact();
+
+        if (!scheduler_.isNetworkAllowed()) {
+            scheduler_.evaluate();
+            return false;
+        }
+
+        if (!retry_.tryAcquire())
+            return false;
+
+        boolean more;
+        int sends = 0;
+        while ((more = bulkMode_ ? sendBulk() : sendNext()) && ++sends < DRAIN_BATCH)
+            ;
+
+        retry_.release();
+
+        if (!more && store_.isEmptyConnections()) {
+            draining_ = false;
+            scheduler_.onDrained();
+        }
+
+        return more;
+    }
+
+    /**
+     * Compacts the backlog once it has grown by COMPACT_THRESHOLD requests
+     * since the last pass, which mostly happens while offline. Runs on the
+     * sender thread, between sends.
+     */
+    private void compact() {
+        int count = store_.connectionCount();
+        if (count < compactedCount_ + COMPACT_THRESHOLD) {
+            compactedCount_ = Math.min(compactedCount_, count);
+            return;
+        }
+
+        int saved = store_.compactConnections();
+        compactedCount_ = count - saved;
+
+        if (saved > 0)
+            Log.d("Countly", "compacted " + count + " queued requests into " + compactedCount_);
+    }
+
+    /**
+     * Records a failed attempt and asks for another turn of the worker,
+     * which it gets once the backoff has passed. The scheduler keeps a
+     * wake-up for the retry in case the process dies first.
+     */
+    private void onSendFailed(Metrics.Counter cause) {
+        metrics_.increment(cause);
+        lastFailed_ = true;
+        retry_.onFailure();
+        sender_.signal(this);
+
+        scheduler_.onUploadFailed(System.currentTimeMillis() + retry_.delay());
+    }
+
+    /**
+     * Sends the request at the head of the queue. While the device ID is
+     * unknown, requests waiting for it are skipped and the first one among the
+     * next bulkBatchSize_ that doesn't need it is sent instead. Returns false
+     * when the sender should stop.
+     */
+    private boolean sendNext() {
+        String[] sessions = store_.connections(1);
+
+        if (sessions.length == 0)
+            return false;
+
+        String stored = sessions[0];
+        String data = encoder_.resolve(stored);
+
+        if (data == null) {
+            for (String candidate : store_.connections(bulkBatchSize_)) {
+                data = encoder_.resolve(candidate);
+                if (data != null) {
+                    stored = candidate;
+                    break;
+                }
+            }
+
+            if (data == null)
+                return false;
+        }
+
+        return sendOne(stored, data);
+    }
+
+    /**
+     * Sends the stored request, resolved to data, on its own and removes it
+     * unless the server failed or couldn't be reached. Requests the server
+     * refuses are removed, as resending them can't help. Returns false when
+     * the sender should stop.
+     */
+    private boolean sendOne(String stored, String data) {
+        if (lastFailed_) metrics_.increment(Metrics.Counter.RETRIES);
+
+        try {
+            long start = metrics_.start();
+            int status = send("/i", data, false);
+            metrics_.stop(Metrics.Timing.SEND, start);
+
+            if (status >= 500) {
+                Log.d("Countly", "error ->" + data + ", status " + status);
+                onSendFailed(Metrics.Counter.SERVER_ERRORS);
+                return false;
+            }
+
+            Log.d("Countly", "ok ->" + data);
+
+            lastFailed_ = false;
+            metrics_.increment(Metrics.Counter.REQUESTS_SENT);
+            retry_.onSuccess();
+            store_.removeConnection(stored);
+        } catch (Exception e) {
+            Log.d("Countly", e.toString());
+            Log.d("Countly", "error ->" + data);
+            onSendFailed(failureCause(e));
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Packs up to bulkBatchSize_ queued requests, and no more than
+     * bulkMaxBodySize_ bytes, into a single POST to /i/bulk and removes them
+     * from the queue once the server accepts the batch. Requests still
+     * waiting for the device ID are left in the queue. A batch the server
+     * refuses is sent again one request at a time, so only the requests it
+     * refuses on their own are dropped. Returns false when the sender should
+     * stop.
+     */
+    private boolean sendBulk() {
+        String[] sessions = store_.connections(bulkBatchSize_);
+
+        List<String> sent = new ArrayList<String>();
+        StringBuilder body = new StringBuilder("requests=%5B");
+
+        try {
+            for (String stored : sessions) {
+                String data = encoder_.resolve(stored);
+
+                if (data == null)
+                    continue;
+
+                String request = URLEncoder.encode(requestToJSON(data).toString(), "UTF-8");
+                if (!sent.isEmpty() && body.length() + request.length() + 6 > bulkMaxBodySize_)
+                    break;
+
+                if (!sent.isEmpty()) body.append("%2C");
+                body.append(request);
+                sent.add(stored);
+            }
+        } catch (UnsupportedEncodingException e) {
+            Log.e("Countly", "Cannot encode bulk request", e);
+            return false;
+        }
+
+        if (sent.isEmpty())
+            return false;
+
+        body.append("%5D");
+
+        if (lastFailed_) metrics_.increment(Metrics.Counter.RETRIES);
+
+        try {
+            long start = metrics_.start();
+            int status = send("/i/bulk", body.toString(), true);
+            metrics_.stop(Metrics.Timing.SEND, start);
+
+            if (status >= 500) {
+                Log.d("Countly", "error -> bulk of " + sent.size() + ", status " + status);
+                onSendFailed(Metrics.Counter.SERVER_ERRORS);
+                return false;
+            }
+
+            if (status < 200 || status >= 300) {
+                Log.d("Countly", "refused -> bulk of " + sent.size() + ", status " + status);
+                for (String stored : sent)
+                    if (!sendOne(stored, encoder_.resolve(stored))) return false;
+                return true;
+            }
+
+            Log.d("Countly", "ok -> bulk of " + sent.size());
+
+            lastFailed_ = false;
+            metrics_.add(Metrics.Counter.REQUESTS_SENT, sent.size());
+            retry_.onSuccess();
+            store_.removeConnections(sent);
+        } catch (Exception e) {
+            Log.d("Countly", e.toString());
+            Log.d("Countly", "error -> bulk of " + sent.size());
+            onSendFailed(failureCause(e));
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Sends form-encoded data to path. In POST mode the body is compressed with
+     * codec_. If the server refuses the compressed body, the request is resent
+     * uncompressed as a GET, or as a plain POST when forcePost is set because
+     * the endpoint needs a body. Compression is then turned off for the rest of
+     * the process if the refusal was a 415, or if the uncompressed request got
+     * through; a 400 or 501 the plain request gets too is about the request,
+     * not the encoding.
+     */
+    private int send(String path, String data, boolean forcePost) throws IOException {
+        String url = serverURL_ + path;
+        Transport transport = transport_;
+        PayloadCodec codec = codec_;
+
+        if ((postMode_ || forcePost) && codec == null)
+            return sendPlain(transport, url, data, true);
+
+        if ((postMode_ || forcePost) && !compressionRejected_) {
+            byte[] encoded = codec.encode(data.getBytes("UTF-8"));
+            metrics_.add(Metrics.Counter.BYTES_SENT, encoded.length);
+            int status = transport.post(url, FORM_CONTENT_TYPE, codec.contentEncoding(), encoded);
+            if (status != 400 && status != 415 && status != 501)
+                return status;
+
+            int plain = sendPlain(transport, url, data, forcePost);
+            if (status == 415 || plain < 400) {
+                Log.w("Countly", "Server refused " + codec.contentEncoding() + " body, sending uncompressed");
+                compressionRejected_ = true;
+            }
+            return plain;
+        }
+
+        return sendPlain(transport, url, data, forcePost);
+    }
+
+    /**
+     * Sends data uncompressed, as a POST body or as a GET query.
+     */
+    private int sendPlain(Transport transport, String url, String data, boolean post) throws IOException {
+        if (post) {
+            byte[] body = data.getBytes("UTF-8");
+            metrics_.add(Metrics.Counter.BYTES_SENT, body.length);
+            return transport.post(url, FORM_CONTENT_TYPE, null, body);
+        }
+
+        metrics_.add(Metrics.Counter.BYTES_SENT, data.length());
+        return transport.get(url + "?" + data);
+    }
+
+    private static Metrics.Counter failureCause(Exception e) {
+        // Covers both socket and connect timeouts of either transport.
+        if (e instanceof InterruptedIOException)
+            return Metrics.Counter.TIMEOUTS;
+
+        return Metrics.Counter.NETWORK_FAILURES;
+    }
+
+    /**
+     * Turns a queued query string into the JSON object form used by /i/bulk.
+     */
+    private static JSONObject requestToJSON(String data) throws UnsupportedEncodingException {
+        JSONObject json = new JSONObject();
+
+        for (String pair : data.split("&")) {
+            int index = pair.indexOf('=');
+            if (index <= 0) continue;
+
+            try {
+                json.put(pair.substring(0, index), URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+            } catch (JSONException e) {
+                Log.e("Countly", "Cannot convert request parameter " + pair, e);
+            }
+        }
+
+        return json;
+    }
+}
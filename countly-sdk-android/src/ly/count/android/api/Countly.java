@@ -1,452 +1,491 @@
 package ly.count.android.api;
 
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.URI;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.OpenUDID.OpenUDID_manager;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.content.pm.PackageManager.NameNotFoundException;
-import android.telephony.TelephonyManager;
-import android.util.DisplayMetrics;
 import android.util.Log;
-import android.view.Display;
-import android.view.WindowManager;
 
 public class Countly {
-    private static Countly sharedInstance_;
-    private Timer timer_;
+    private static final ConcurrentHashMap<String, Countly> instances_ = new ConcurrentHashMap<String, Countly>();
+    private static final Timer timer_ = new Timer();
+    private static final Actor actor_ = new Actor("Countly-Actor");
+    private static boolean deviceIdSyncStarted_ = false;
+
+    private final String name_;
     private ConnectionQueue queue_;
     private EventQueue eventQueue_;
+    private final AtomicInteger activityCount_ = new AtomicInteger();
     private boolean isVisible_;
-    private double unsentSessionLength_;
-    private double lastTime_;
-    private int activityCount_;
+    private boolean inForeground_;
+    private long unsentSessionNanos_;
+    private long lastTime_;
     private CountlyStore countlyStore_;
+    private TimerTask metricsTask_;
+    private boolean metricsEnabled_;
+    private volatile boolean wantsMetrics_;
+    private volatile EventLimiter eventLimiter_;
+    private FlushPolicy flushPolicy_ = new FlushPolicy();
+    private long tickInterval_ = FlushPolicy.DEFAULT_INTERVAL;
+    private TimerTask tickTask_;
+    private int recordedSinceTick_;
+    private int sizeFlushesSinceTick_;
+    private final DeviceSampler sampler_ = new DeviceSampler();
 
     protected static final int SESSION_DURATION_WHEN_TIME_ADJUSTED = 15;
+    private static final long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+    protected static final String DEFAULT_INSTANCE = "default";
+    // Receivers get about ten seconds before the system considers them hung.
+    protected static final long WAKE_UP_TIMEOUT = 9000;
 
     static public Countly sharedInstance() {
-        if (sharedInstance_ == null)
-            sharedInstance_ = new Countly();
+        return instance(DEFAULT_INSTANCE);
+    }
+
+    /**
+     * Returns the instance called name, creating it on first use. Every
+     * instance is initialized with its own server URL and app key and keeps
+     * its own queued data; all of them share one sender thread, one
+     * connection pool and one timer. sharedInstance() is the instance called
+     * "default". Names may only contain letters, digits, '-' and '_'.
+     */
+    static public Countly instance(String name) {
+        Countly instance = name == null ? null : instances_.get(name);
+        return instance != null ? instance : createInstance(name);
+    }
+
+    /**
+     * Slow path of instance(), taken once per name. Creating under the lock
+     * makes sure no caller ever sees a second instance for the same name.
+     */
+    private static synchronized Countly createInstance(String name) {
+        if (name == null || !name.matches("[A-Za-z0-9_-]+"))
+            throw new IllegalArgumentException("Invalid instance name " + name);
+
+        Countly instance = instances_.get(name);
+        if (instance == null) {
+            instance = new Countly(name);
+            instances_.put(name, instance);
+        }
 
-        return sharedInstance_;
+        return instance;
     }
 
-    private Countly() {
+    private Countly(String name) {
+        name_ = name;
         queue_ = new ConnectionQueue();
-        timer_ = new Timer();
-        timer_.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                onTimer();
-            }
-        }, 60 * 1000, 60 * 1000);
+        queue_.setDeviceSampler(sampler_);
+        scheduleTick(tickInterval_);
 
         isVisible_ = false;
-        unsentSessionLength_ = 0;
-        activityCount_ = 0;
+        unsentSessionNanos_ = 0;
     }
 
     public void init(Context context, String serverURL, String appKey) {
-        OpenUDID_manager.sync(context);
-        countlyStore_ = new CountlyStore(context);
+        init(context, serverURL, appKey, null);
+    }
 
-        queue_.setContext(context);
+    /**
+     * Like init, additionally limiting how many events of the keys in
+     * eventLimits are kept. Replaces the limits of an earlier init.
+     */
+    public void init(Context context, String serverURL, String appKey, Map<String, EventLimit> eventLimits) {
+        eventLimiter_ = eventLimits == null || eventLimits.isEmpty() ? null : new EventLimiter(eventLimits);
+
+        // Configured first, as open() may hand over a known device ID and
+        // start sending right away.
         queue_.setServerURL(serverURL);
         queue_.setAppKey(appKey);
-        queue_.setCountlyStore(countlyStore_);
-
-        eventQueue_ = new EventQueue(countlyStore_);
-    }
-
-    public void onStart() {
-        activityCount_++;
-        if (activityCount_ == 1)
-            onStartHelper();
-    }
+        open(context);
 
-    public void onStop() {
-        activityCount_--;
-        if (activityCount_ == 0)
-            onStopHelper();
+        countlyStore_.setServerConfig(serverURL, appKey);
     }
 
-    public void onStartHelper() {
-        lastTime_ = System.currentTimeMillis() / 1000.0;
-
-        queue_.beginSession();
+    /**
+     * Sets up storage and the sender the first time it is called. Later calls,
+     * for example init after a wake-up already started the SDK, do nothing.
+     */
+    private void open(Context context) {
+        if (countlyStore_ != null)
+            return;
 
-        isVisible_ = true;
-    }
+        // The SDK outlives activities and a receiver's context can neither
+        // register receivers nor bind services.
+        context = context.getApplicationContext();
 
-    public void onStopHelper() {
-        if (eventQueue_.size() > 0)
-            queue_.recordEvents(eventQueue_.events());
+        CountlyStore store = new CountlyStore(context, DEFAULT_INSTANCE.equals(name_) ? null : name_);
 
-        double currTime = System.currentTimeMillis() / 1000.0;
-        unsentSessionLength_ += currTime - lastTime_;
+        queue_.setContext(context);
+        queue_.setMetricsCache(new MetricsCache(context, timer_));
+        queue_.setCountlyStore(store);
+        queue_.setUploadHost(new AndroidUploadHost(context, name_));
 
-        int duration = (int) unsentSessionLength_;
-        queue_.endSession(duration);
-        unsentSessionLength_ -= duration;
+        eventQueue_ = new EventQueue(store, timer_, actor_);
+        countlyStore_ = store;
 
-        isVisible_ = false;
+        syncDeviceId(context, this);
     }
 
-    public void recordEvent(String key) {
-        eventQueue_.recordEvent(key);
-
-        if (eventQueue_.size() >= 10)
-            queue_.recordEvents(eventQueue_.events());
-    }
+    /**
+     * Starts OpenUDID discovery for the first instance opened and hands the
+     * result to every instance opened before or after it is known.
+     */
+    private static synchronized void syncDeviceId(Context context, Countly instance) {
+        if (OpenUDID_manager.isInitialized()) {
+            instance.onDeviceIdReady(OpenUDID_manager.getOpenUDID());
+            return;
+        }
 
-    public void recordEvent(String key, int count) {
-        eventQueue_.recordEvent(key, count);
+        if (deviceIdSyncStarted_)
+            return;
 
-        if (eventQueue_.size() >= 10)
-            queue_.recordEvents(eventQueue_.events());
+        deviceIdSyncStarted_ = true;
+        OpenUDID_manager.sync(context, OpenUDID_manager.DEFAULT_TIMEOUT, new OpenUDID_manager.OnReadyListener() {
+            @Override
+            public void onOpenUDIDReady(String openUDID) {
+                for (Countly instance : openInstances())
+                    instance.onDeviceIdReady(openUDID);
+            }
+        });
     }
 
-    public void recordEvent(String key, int count, double sum) {
-        eventQueue_.recordEvent(key, count, sum);
+    private static synchronized List<Countly> openInstances() {
+        List<Countly> open = new ArrayList<Countly>();
+        for (Countly instance : instances_.values())
+            if (instance.countlyStore_ != null) open.add(instance);
 
-        if (eventQueue_.size() >= 10)
-            queue_.recordEvents(eventQueue_.events());
+        return open;
     }
 
-    public void recordEvent(String key, Map<String, String> segmentation, int count) {
-        eventQueue_.recordEvent(key, segmentation, count);
-
-        if (eventQueue_.size() >= 10)
-            queue_.recordEvents(eventQueue_.events());
+    private void onDeviceIdReady(String deviceId) {
+        sampler_.setDeviceId(deviceId);
+        onSamplingChanged();
+        queue_.onDeviceIdReady();
     }
 
-    public void recordEvent(String key, Map<String, String> segmentation, int count, double sum) {
-        eventQueue_.recordEvent(key, segmentation, count, sum);
-
-        if (eventQueue_.size() >= 10)
-            queue_.recordEvents(eventQueue_.events());
-    }
+    /**
+     * Called by UploadReceiver when a deferred upload is due. In a process
+     * the app hasn't initialized, the server URL and app key saved by the
+     * last init are used. done is run once the sender has had its turn, or
+     * after WAKE_UP_TIMEOUT milliseconds at the latest.
+     */
+    void onUploadWakeUp(Context context, Runnable done) {
+        WakeUp wakeUp = new WakeUp(done);
+        timer_.schedule(wakeUp, WAKE_UP_TIMEOUT);
 
-    private void onTimer() {
-        if (isVisible_ == false)
-            return;
+        if (countlyStore_ == null) {
+            open(context);
 
-        double currTime = System.currentTimeMillis() / 1000.0;
-        unsentSessionLength_ += currTime - lastTime_;
-        lastTime_ = currTime;
+            String serverURL = countlyStore_.serverURL();
+            String appKey = countlyStore_.appKey();
+            if (serverURL == null || appKey == null) {
+                wakeUp.run();
+                return;
+            }
 
-        int duration = (int) unsentSessionLength_;
-        queue_.updateSession(duration);
-        unsentSessionLength_ -= duration;
+            queue_.setServerURL(serverURL);
+            queue_.setAppKey(appKey);
+        }
 
-        if (eventQueue_.size() > 0)
-            queue_.recordEvents(eventQueue_.events());
+        queue_.onWakeUp(wakeUp);
     }
-}
 
-class ConnectionQueue {
-    private CountlyStore store_;
-    private Thread thread_ = null;
-    private String appKey_;
-    private Context context_;
-    private String serverURL_;
+    /**
+     * Runs done the first time it is run, either by the sender or by the
+     * timer when the sender takes too long.
+     */
+    private static class WakeUp extends TimerTask {
+        private final AtomicBoolean finished_ = new AtomicBoolean();
+        private final Runnable done_;
 
-    public void setAppKey(String appKey) {
-        appKey_ = appKey;
-    }
+        WakeUp(Runnable done) {
+            done_ = done;
+        }
 
-    public void setContext(Context context) {
-        context_ = context;
-    }
+        @Override
+        public void run() {
+            if (!finished_.compareAndSet(false, true))
+                return;
 
-    public void setServerURL(String serverURL) {
-        serverURL_ = serverURL;
+            cancel();
+            done_.run();
+        }
     }
 
-    public void setCountlyStore(CountlyStore countlyStore) {
-        store_ = countlyStore;
+    /**
+     * Holds queued requests back until the network is connected, and
+     * unmetered if unmeteredOnly is set, and either minBatchSize requests are
+     * waiting or the oldest has waited maxDelay milliseconds. Deferred uploads
+     * are kept across process death if UploadReceiver is declared in the
+     * manifest. Must be called after init.
+     */
+    public void setUploadConstraints(boolean unmeteredOnly, int minBatchSize, long maxDelay) {
+        queue_.setUploadConstraints(unmeteredOnly, minBatchSize, maxDelay);
+    }
+
+    /**
+     * Recorded events are aggregated in memory and saved to storage every
+     * seconds seconds, or sooner once mutations events have been recorded.
+     * Must be called after init.
+     */
+    public void setEventWriteBehind(final int seconds, final int mutations) {
+        actor_.post(new Runnable() {
+            @Override
+            public void run() {
+                eventQueue_.setWriteBehind(seconds, mutations);
+            }
+        });
     }
 
-    public void beginSession() {
-        String data;
-        data = "app_key=" + appKey_;
-        data += "&" + "device_id=" + DeviceInfo.getUDID();
-        data += "&" + "timestamp=" + (long) (System.currentTimeMillis() / 1000.0);
-        data += "&" + "sdk_version=" + "2.0";
-        data += "&" + "begin_session=" + "1";
-        data += "&" + "metrics=" + DeviceInfo.getMetrics(context_);
-
-        store_.addConnection(data);
-
-        tick();
+    /**
+     * Caps the stored requests waiting to be sent at maxCount requests and
+     * maxBytes bytes. Must be called after init.
+     */
+    public void setRequestQueueLimits(final int maxCount, final long maxBytes) {
+        actor_.post(new Runnable() {
+            @Override
+            public void run() {
+                countlyStore_.setConnectionLimits(maxCount, maxBytes);
+            }
+        });
     }
 
-    public void updateSession(int duration) {
-        String data;
-        data = "app_key=" + appKey_;
-        data += "&" + "device_id=" + DeviceInfo.getUDID();
-        data += "&" + "timestamp=" + (long) (System.currentTimeMillis() / 1000.0);
-        data += "&" + "session_duration=" + (duration > 0 ? duration : Countly.SESSION_DURATION_WHEN_TIME_ADJUSTED);
-
-        store_.addConnection(data);
-
-        tick();
+    /**
+     * Caps the aggregated events waiting to be sent at maxCount distinct
+     * events and about maxBytes bytes. Must be called after init.
+     */
+    public void setEventQueueLimits(final int maxCount, final int maxBytes) {
+        actor_.post(new Runnable() {
+            @Override
+            public void run() {
+                eventQueue_.setLimits(maxCount, maxBytes);
+            }
+        });
     }
 
-    public void endSession(int duration) {
-        String data;
-        data = "app_key=" + appKey_;
-        data += "&" + "device_id=" + DeviceInfo.getUDID();
-        data += "&" + "timestamp=" + (long) (System.currentTimeMillis() / 1000.0);
-        data += "&" + "end_session=" + "1";
-        data += "&" + "session_duration=" + (duration > 0 ? duration : Countly.SESSION_DURATION_WHEN_TIME_ADJUSTED);
-
-        store_.addConnection(data);
-
-        tick();
+    /**
+     * Decides what is given up once a queue reaches its limits. Defaults to
+     * dropping the oldest data. Must be called after init.
+     */
+    public void setEvictionPolicy(final EvictionPolicy policy) {
+        actor_.post(new Runnable() {
+            @Override
+            public void run() {
+                countlyStore_.setEvictionPolicy(policy);
+                eventQueue_.setEvictionPolicy(policy);
+            }
+        });
     }
 
-    public void recordEvents(String events) {
-        String data;
-        data = "app_key=" + appKey_;
-        data += "&" + "device_id=" + DeviceInfo.getUDID();
-        data += "&" + "timestamp=" + (long) (System.currentTimeMillis() / 1000.0);
-        data += "&" + "events=" + events;
-
-        store_.addConnection(data);
-
-        tick();
+    /**
+     * Priority of events with the given key under
+     * EvictionPolicy.DROP_LOWEST_PRIORITY. Events default to 0.
+     */
+    public void setEventPriority(final String key, final int priority) {
+        actor_.post(new Runnable() {
+            @Override
+            public void run() {
+                eventQueue_.setPriority(key, priority);
+            }
+        });
     }
 
-    private void tick() {
-        if (thread_ != null && thread_.isAlive())
-            return;
-
-        if (store_.isEmptyConnections())
-            return;
+    /**
+     * Replaces the triggers that turn recorded events into uploads and the
+     * interval of session updates. See FlushPolicy.
+     */
+    public void setFlushPolicy(FlushPolicy policy) {
+        final FlushPolicy copy = policy.copy();
 
-        thread_ = new Thread() {
+        actor_.post(new Runnable() {
             @Override
             public void run() {
-                while (true) {
-                    String[] sessions = store_.connections();
-
-                    if (sessions.length == 0)
-                        break;
-
-                    String data = sessions[0];
-
-                    int index = data.indexOf("REPLACE_UDID");
-                    if (index != -1) {
-                        if (OpenUDID_manager.isInitialized() == false)
-                            break;
-                        data = data.replaceFirst("REPLACE_UDID", OpenUDID_manager.getOpenUDID());
+                flushPolicy_ = copy;
+                tickInterval_ = copy.interval();
+                scheduleTick(tickInterval_);
+            }
+        });
+    }
+
+    /**
+     * Makes only about rate of all devices report, picking the same devices
+     * every time. Devices that aren't picked record no sessions or events and
+     * keep anything queued earlier until they are picked again. A device
+     * dropped in the middle of a session ends it and sends what it has queued
+     * first. Raising the rate at runtime keeps the devices already reporting;
+     * lowering it stops some of them. Defaults to 1, every device.
+     */
+    public void setDeviceSampleRate(double rate) {
+        sampler_.setRate(rate);
+        onSamplingChanged();
+    }
+
+    /**
+     * Starts or ends the current session if the device was just sampled in
+     * or out while the app is in the foreground. While sampled out, the
+     * instance's timers are stopped.
+     */
+    private void onSamplingChanged() {
+        actor_.post(new Runnable() {
+            @Override
+            public void run() {
+                if (sampler_.isSampledIn()) {
+                    if (eventQueue_ != null)
+                        eventQueue_.resume();
+                    if (tickTask_ == null)
+                        scheduleTick(tickInterval_);
+
+                    if (inForeground_ && !isVisible_)
+                        beginSession(System.nanoTime());
+                } else {
+                    if (isVisible_) {
+                        queue_.drainWhileSampledOut();
+                        if (eventQueue_.size() > 0)
+                            queue_.recordEvents(eventQueue_.events());
+                        closeSession(System.nanoTime());
                     }
 
-                    try {
-                        DefaultHttpClient httpClient = new DefaultHttpClient();
-                        HttpGet method = new HttpGet(new URI(serverURL_ + "/i?" + data));
-                        HttpResponse response = httpClient.execute(method);
-                        InputStream input = response.getEntity().getContent();
-                        while (input.read() != -1)
-                            ;
-                        httpClient.getConnectionManager().shutdown();
-
-                        Log.d("Countly", "ok ->" + data);
-
-                        store_.removeConnection(data);
-                    } catch (Exception e) {
-                        Log.d("Countly", e.toString());
-                        Log.d("Countly", "error ->" + data);
-                        break;
-                    }
+                    if (eventQueue_ != null)
+                        eventQueue_.pause();
                 }
             }
-        };
-
-        thread_.start();
-    }
-}
-
-class DeviceInfo {
-    public static String getUDID() {
-        return OpenUDID_manager.isInitialized() == false ? "REPLACE_UDID" : OpenUDID_manager.getOpenUDID();
+        });
     }
 
-    public static String getOS() {
-        return "Android";
-    }
+    /**
+     * Reports how full the fullest of the SDK's queues is: the recording
+     * mailbox, the aggregated events or the stored requests. Safe to call
+     * from any thread after init.
+     */
+    public Backpressure backpressure() {
+        float usage = actor_.size() / (float) actor_.capacity();
+        usage = Math.max(usage, eventQueue_.usage());
+        usage = Math.max(usage, countlyStore_.connectionUsage());
 
-    public static String getOSVersion() {
-        return android.os.Build.VERSION.RELEASE;
+        return Backpressure.forUsage(usage);
     }
 
-    public static String getDevice() {
-        return android.os.Build.MODEL;
+    /**
+     * Counts a started activity. Safe to call from any thread without
+     * locking; the session itself is begun on the actor thread.
+     */
+    public void onStart() {
+        if (activityCount_.getAndIncrement() == 0)
+            reconcileSession();
     }
 
-    public static String getResolution(Context context) {
-        WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
-
-        Display display = wm.getDefaultDisplay();
-
-        DisplayMetrics metrics = new DisplayMetrics();
-        display.getMetrics(metrics);
+    /**
+     * Counts a stopped activity. Calls without a matching onStart are
+     * ignored, so the count never goes negative.
+     */
+    public void onStop() {
+        int count;
+        do {
+            count = activityCount_.get();
+            if (count == 0) {
+                Log.w("Countly", "onStop called without a matching onStart");
+                return;
+            }
+        } while (!activityCount_.compareAndSet(count, count - 1));
 
-        return metrics.widthPixels + "x" + metrics.heightPixels;
+        if (count == 1)
+            reconcileSession();
     }
 
-    public static String getDensity(Context context) {
-        int density = context.getResources().getDisplayMetrics().densityDpi;
-
-        switch (density) {
-            case DisplayMetrics.DENSITY_LOW:
-                return "LDPI";
-            case DisplayMetrics.DENSITY_MEDIUM:
-                return "MDPI";
-            case DisplayMetrics.DENSITY_TV:
-                return "TVDPI";
-            case DisplayMetrics.DENSITY_HIGH:
-                return "HDPI";
-            case DisplayMetrics.DENSITY_XHIGH:
-                return "XHDPI";
-            case DisplayMetrics.DENSITY_XXHIGH:
-                return "XXHDPI";
-            case DisplayMetrics.DENSITY_XXXHIGH:
-                return "XXXHDPI";
-            default:
-                return "";
-        }
-    }
+    /**
+     * Brings the session in line with the activity count as it is when the
+     * actor gets to it. Callers racing on onStart and onStop may post these
+     * in any order; whatever the order, the last one to run sees the final
+     * count, so a session is never begun or ended twice.
+     */
+    private void reconcileSession() {
+        final long time = System.nanoTime();
 
-    public static String getCarrier(Context context) {
-        try {
-            TelephonyManager manager = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
-            return manager.getNetworkOperatorName();
-        } catch (NullPointerException npe) {
-            npe.printStackTrace();
-            Log.e("Countly", "No carrier found");
-        }
-        return "";
-    }
+        actor_.post(new Runnable() {
+            @Override
+            public void run() {
+                boolean foreground = activityCount_.get() > 0;
 
-    public static String getLocale() {
-        Locale locale = Locale.getDefault();
-        return locale.getLanguage() + "_" + locale.getCountry();
+                if (foreground && !inForeground_)
+                    beginSession(time);
+                else if (!foreground && inForeground_)
+                    endSession(time);
+            }
+        });
     }
 
-    public static String appVersion(Context context) {
-        String result = "1.0";
-        try {
-            result = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionName;
-        } catch (NameNotFoundException e) {
-        }
+    public void onStartHelper() {
+        final long time = System.nanoTime();
 
-        return result;
+        actor_.post(new Runnable() {
+            @Override
+            public void run() {
+                beginSession(time);
+            }
+        });
     }
 
-    public static String getMetrics(Context context) {
-        String result = "";
-        JSONObject json = new JSONObject();
-
-        try {
-            json.put("_device", getDevice());
-            json.put("_os", getOS());
-            json.put("_os_version", getOSVersion());
-            json.put("_carrier", getCarrier(context));
-            json.put("_resolution", getResolution(context));
-            json.put("_density", getDensity(context));
-            json.put("_locale", getLocale());
-            json.put("_app_version", appVersion(context));
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-
-        result = json.toString();
-
-        try {
-            result = java.net.URLEncoder.encode(result, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-
-        }
+    public void onStopHelper() {
+        final long time = System.nanoTime();
 
-        return result;
+        actor_.post(new Runnable() {
+            @Override
+            public void run() {
+                endSession(time);
+            }
+        });
     }
-}
 
-class Event {
-    public String key = null;
-    public Map<String, String> segmentation = null;
-    public int count = 0;
-    public double sum = 0;
-    public int timestamp = 0;
+    private void beginSession(long time) {
+        inForeground_ = true;
+        if (!sampler_.isSampledIn())
+            return;
 
-    public boolean equals(Object o) {
-        if (o == null || !(o instanceof Event)) return false;
+        lastTime_ = time;
 
-        Event e = (Event) o;
+        queue_.beginSession();
 
-        return (key == null ? e.key == null : key.equals(e.key)) &&
-                timestamp == e.timestamp && (segmentation == null ? e.segmentation == null : segmentation.equals(e.segmentation));
+        isVisible_ = true;
     }
-}
 
-class EventQueue {
-    private CountlyStore countlyStore_;
+    private void endSession(long time) {
+        inForeground_ = false;
+        if (!isVisible_)
+            return;
 
-    public EventQueue(CountlyStore countlyStore) {
-        countlyStore_ = countlyStore;
-    }
+        if (flushPolicy_.flushOnSessionEnd() && eventQueue_.size() > 0)
+            queue_.recordEvents(eventQueue_.events());
 
-    public int size() {
-        synchronized (this) {
-            return countlyStore_.events().length;
-        }
+        closeSession(time);
     }
 
-    public String events() {
-        String result = "";
-
-        synchronized (this) {
-            List<Event> events = countlyStore_.eventsList();
-
-            JSONArray eventArray = new JSONArray();
-            for (Event e : events) eventArray.put(CountlyStore.eventToJSON(e));
+    private void closeSession(long time) {
+        queue_.endSession(takeSessionDuration(time));
 
-            result = eventArray.toString();
-
-            countlyStore_.removeEvents(events);
-        }
-
-        try {
-            result = java.net.URLEncoder.encode(result, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
+        isVisible_ = false;
+    }
 
-        }
+    /**
+     * Whole seconds of session time up to time, a System.nanoTime() reading,
+     * that haven't been reported yet. The fraction of a second left over is
+     * carried into the next report. The monotonic clock keeps wall clock
+     * changes out of session durations.
+     */
+    private int takeSessionDuration(long time) {
+        unsentSessionNanos_ += Math.max(0, time - lastTime_);
+        lastTime_ = Math.max(lastTime_, time);
 
-        return result;
+        int duration = (int) (unsentSessionNanos_ / NANOS_PER_SECOND);
+        unsentSessionNanos_ -= duration * NANOS_PER_SECOND;
+        return duration;
     }
 
     public void recordEvent(String key) {
@@ -465,186 +504,265 @@ class EventQueue {
         recordEvent(key, segmentation, count, 0);
     }
 
+    /**
+     * Hands the event to the actor thread and returns without touching
+     * storage. Events are dropped with a warning if the actor has fallen too
+     * far behind, and silently if the event limits of key reject them.
+     */
     public void recordEvent(String key, Map<String, String> segmentation, int count, double sum) {
-        synchronized (this) {
-            countlyStore_.addEvent(key, segmentation, count, sum);
+        RecordEvent event = limit(key, segmentation, count, sum);
+        if (event == null)
+            return;
+
+        if (!actor_.offer(event)) {
+            Log.w("Countly", "Event queue is full, dropping " + key);
+            Metrics.sharedInstance().increment(Metrics.Counter.EVENTS_DROPPED);
         }
     }
-}
 
-class CountlyStore {
-    private static final String TAG = "COUNTLY_STORE";
-    private static final String PREFERENCES = "COUNTLY_STORE";
-    private static final String DELIMITER = "===";
-    private static final String CONNECTIONS_PREFERENCE = "CONNECTIONS";
-    private static final String EVENTS_PREFERENCE = "EVENTS";
+    public boolean tryRecordEvent(String key) {
+        return tryRecordEvent(key, null, 1, 0);
+    }
 
-    private SharedPreferences preferences;
+    /**
+     * Like recordEvent, but sheds the new event instead of evicting stored
+     * data when a queue is full. Never blocks. Returns false if the event was
+     * shed, rejected by the event limits of key or the device is sampled out.
+     */
+    public boolean tryRecordEvent(String key, Map<String, String> segmentation, int count, double sum) {
+        RecordEvent event = limit(key, segmentation, count, sum);
+        if (event == null)
+            return false;
 
-    protected CountlyStore(Context ctx) {
-        preferences = ctx.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
-    }
+        if (backpressure() != Backpressure.FULL && actor_.offer(event))
+            return true;
 
-    public String[] connections() {
-        String array = preferences.getString(CONNECTIONS_PREFERENCE, null);
-        return array == null || "".equals(array) ? new String[0] : array.split(DELIMITER);
+        Metrics.sharedInstance().increment(Metrics.Counter.EVENTS_DROPPED);
+        return false;
     }
 
-    public String[] events() {
-        String array = preferences.getString(EVENTS_PREFERENCE, null);
-        return array == null || "".equals(array) ? new String[0] : array.split(DELIMITER);
-    }
+    /**
+     * Applies device sampling and the event limits set at init. Returns the
+     * event to record, with count and sum scaled up if key is sampled, or null
+     * if it was rejected.
+     */
+    private RecordEvent limit(String key, Map<String, String> segmentation, int count, double sum) {
+        if (!sampler_.isSampledIn())
+            return null;
 
-    public List<Event> eventsList() {
-        String[] array = events();
-        if (array.length == 0) return new ArrayList<Event>();
-        else {
-            List<Event> events = new ArrayList<Event>();
-            for (String s : array) {
-                try {
-                    events.add(jsonToEvent(new JSONObject(s)));
-                } catch (JSONException e) {
-                    Log.e(TAG, "Cannot parse Event json", e);
-                }
-            }
+        EventLimiter limiter = eventLimiter_;
+        if (limiter == null)
+            return new RecordEvent(key, segmentation, count, sum);
 
-            Collections.sort(events, new Comparator<Event>() {
-                @Override
-                public int compare(Event e1, Event e2) {
-                    return e2.timestamp - e1.timestamp;
-                }
-            });
+        double weight = limiter.admit(key);
+        if (weight == 0) {
+            Metrics.sharedInstance().increment(Metrics.Counter.EVENTS_LIMITED);
+            return null;
+        }
 
-            return events;
+        if (weight != 1) {
+            count = limiter.scale(count, weight);
+            sum *= weight;
         }
-    }
 
-    public boolean isEmptyConnections() {
-        return connections().length == 0;
+        return new RecordEvent(key, segmentation, count, sum);
     }
 
-    public boolean isEmptyEvents() {
-        return events().length == 0;
-    }
+    private class RecordEvent implements Runnable {
+        private final String key;
+        private final Segmentation segmentation;
+        private final int count;
+        private final double sum;
+        private final int timestamp;
 
-    public void addConnection(String str) {
-        List<String> connections = new ArrayList<String>(Arrays.asList(connections()));
-        connections.add(str);
-        preferences.edit().putString(CONNECTIONS_PREFERENCE, join(connections, DELIMITER)).commit();
-    }
+        RecordEvent(String key, Map<String, String> segmentation, int count, double sum) {
+            this.key = key;
+            this.segmentation = Segmentation.of(segmentation);
+            this.count = count;
+            this.sum = sum;
+            this.timestamp = (int) (System.currentTimeMillis() / 1000);
+        }
 
-    public void removeConnection(String str) {
-        List<String> connections = new ArrayList<String>(Arrays.asList(connections()));
-        connections.remove(str);
-        preferences.edit().putString(CONNECTIONS_PREFERENCE, join(connections, DELIMITER)).commit();
-    }
+        @Override
+        public void run() {
+            eventQueue_.recordEvent(key, segmentation, count, sum, timestamp);
+            recordedSinceTick_++;
 
-    public void addEvent(Event event) {
-        List<Event> events = eventsList();
-        if (!events.contains(event)) events.add(event);
-        preferences.edit().putString(EVENTS_PREFERENCE, joinEvents(events, DELIMITER)).commit();
+            if (flushPolicy_.isOverSize(eventQueue_.size(), eventQueue_.bytes())) {
+                queue_.recordEvents(eventQueue_.events());
+                sizeFlushesSinceTick_++;
+            }
+        }
     }
 
-    public void addEvent(String key, Map<String, String> segmentation, int count, double sum) {
-        List<Event> events = eventsList();
-        Event event = null;
-        for (Event e : events) if (e.key != null && e.key.equals(key)) event = e;
-
-        if (event == null) {
-            event = new Event();
-            event.key = key;
-            event.segmentation = segmentation;
-            event.count = 0;
-            event.sum = 0;
-            event.timestamp = (int) (System.currentTimeMillis() / 1000);
-        } else {
-            removeEvent(event);
-            event.timestamp = Math.round((event.timestamp + (System.currentTimeMillis() / 1000)) / 2);
+    /**
+     * When enabled, queued requests are sent in batches of up to batchSize
+     * requests and maxBodySize bytes in a single POST to /i/bulk instead of
+     * one GET per request.
+     */
+    public void setBulkMode(boolean enabled, int batchSize, int maxBodySize) {
+        queue_.setBulkMode(enabled, batchSize, maxBodySize);
+    }
+
+    /**
+     * When enabled, requests are sent as POST bodies compressed with the
+     * payload codec (gzip unless changed with setPayloadCodec) instead of GET
+     * query strings. Servers that refuse compressed bodies get plain GETs.
+     */
+    public void setPostMode(boolean enabled) {
+        queue_.setPostMode(enabled);
+    }
+
+    /**
+     * Codec used to compress POST bodies, or null to send them uncompressed.
+     */
+    public void setPayloadCodec(PayloadCodec codec) {
+        queue_.setPayloadCodec(codec);
+    }
+
+    /**
+     * After a failed upload the sender waits baseDelay milliseconds, doubling
+     * with each further failure up to maxDelay, with random jitter. After
+     * failuresToOpen consecutive failures nothing is sent for at least
+     * openInterval milliseconds, then a single probe request decides whether
+     * sending resumes.
+     */
+    public void setRetryBackoff(long baseDelay, long maxDelay, int failuresToOpen, long openInterval) {
+        queue_.setRetryBackoff(baseDelay, maxDelay, failuresToOpen, openInterval);
+    }
+
+    /**
+     * Connect and read timeouts, in milliseconds, of the current transport.
+     * The default transport is shared by all instances, so with it this sets
+     * the timeouts of every instance in the process; give an instance its own
+     * transport with setTransport first to set them for it alone.
+     */
+    public void setHttpTimeouts(int connectTimeout, int readTimeout) {
+        queue_.setHttpTimeouts(connectTimeout, readTimeout);
+    }
+
+    /**
+     * Replaces the transport used to talk to the Countly server, by default a
+     * pooled Apache HTTP client. Set it before setHttpTimeouts, since timeouts
+     * are applied to the current transport.
+     */
+    public void setTransport(Transport transport) {
+        queue_.setTransport(transport);
+    }
+
+    /**
+     * Turns metrics collection on or off for reading them with metrics().
+     * Collection also runs while a metrics listener is registered.
+     */
+    public synchronized void setMetricsEnabled(boolean enabled) {
+        metricsEnabled_ = enabled;
+        wantsMetrics_ = metricsEnabled_ || metricsTask_ != null;
+        updateMetricsEnabled();
+    }
+
+    /**
+     * Hands a metrics snapshot to listener every intervalMillis milliseconds,
+     * collecting metrics for as long as it is registered. A null listener
+     * unregisters the current one.
+     */
+    public synchronized void setMetricsListener(final MetricsListener listener, long intervalMillis) {
+        if (metricsTask_ != null) {
+            metricsTask_.cancel();
+            metricsTask_ = null;
         }
 
-        event.count += count;
-        event.sum += sum;
+        if (listener != null) {
+            metricsTask_ = new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        listener.onMetrics(metrics());
+                    } catch (RuntimeException e) {
+                        Log.e("Countly", "Metrics listener failed", e);
+                    }
+                }
+            };
+            timer_.schedule(metricsTask_, intervalMillis, intervalMillis);
+        }
 
-        addEvent(event);
+        wantsMetrics_ = metricsEnabled_ || metricsTask_ != null;
+        updateMetricsEnabled();
     }
 
-    public void removeEvent(Event event) {
-        List<Event> events = eventsList();
-        events.remove(event);
-        preferences.edit().putString(EVENTS_PREFERENCE, joinEvents(events, DELIMITER)).commit();
-    }
+    /**
+     * Metrics are collected while any instance wants them.
+     */
+    private static synchronized void updateMetricsEnabled() {
+        boolean enabled = false;
+        for (Countly instance : instances_.values())
+            enabled |= instance.wantsMetrics_;
 
-    public void removeEvents(Collection<Event> eventsToRemove) {
-        List<Event> events = eventsList();
-        for (Event e : eventsToRemove) events.remove(e);
-        preferences.edit().putString(EVENTS_PREFERENCE, joinEvents(events, DELIMITER)).commit();
+        Metrics.sharedInstance().setEnabled(enabled);
     }
 
-    protected static JSONObject eventToJSON(Event event) {
-        JSONObject json = new JSONObject();
-
-        try {
-            json.put("key", event.key);
-            json.put("count", event.count);
-            json.put("sum", event.sum);
-            json.put("timestamp", event.timestamp);
-
-            if (event.segmentation != null) {
-                json.put("segmentation", new JSONObject(event.segmentation));
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-
-        return json;
+    /**
+     * Current metrics. Counters and timings cover all instances and stay at
+     * zero unless collection is enabled; the queue depth is this instance's
+     * and always reported.
+     */
+    public MetricsSnapshot metrics() {
+        CountlyStore store = countlyStore_;
+        return Metrics.sharedInstance().snapshot(store == null ? 0 : store.connectionCount(),
+                store == null ? 0 : store.connectionBytes());
     }
 
-    protected static Event jsonToEvent(JSONObject json) {
-        Event event = new Event();
+    /**
+     * Schedules the next tick on the shared timer, replacing a pending one.
+     * Ticks run on the actor thread.
+     */
+    private void scheduleTick(long delay) {
+        if (tickTask_ != null)
+            tickTask_.cancel();
 
-        try {
-            event.key = json.get("key").toString();
-            event.count = Integer.valueOf(json.get("count").toString());
-            event.sum = Double.valueOf(json.get("sum").toString());
-            event.timestamp = Integer.valueOf(json.get("timestamp").toString());
-
-            if (json.has("segmentation")) {
-                JSONObject segm = json.getJSONObject("segmentation");
-                HashMap<String, String> segmentation = new HashMap<String, String>();
-                Iterator nameItr = segm.keys();
-
-                while (nameItr.hasNext()) {
-                    Object obj = nameItr.next();
-                    if (obj instanceof String) {
-                        segmentation.put((String) obj, ((JSONObject) json.get("segmentation")).getString((String) obj));
+        tickTask_ = new TimerTask() {
+            @Override
+            public void run() {
+                actor_.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTimer();
                     }
-                }
-
-                event.segmentation = segmentation;
+                });
             }
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-
-        return event;
-    }
-
-    private static String joinEvents(Collection<Event> collection, String delimiter) {
-        List<String> strings = new ArrayList<String>();
-        for (Event e : collection) strings.add(eventToJSON(e).toString());
-        return join(strings, delimiter);
+        };
+        timer_.schedule(tickTask_, delay);
     }
 
-    private static String join(Collection<String> collection, String delimiter) {
-        StringBuilder builder = new StringBuilder();
-
-        int i = 0;
-        for (String s : collection) {
-            builder.append(s);
-            if (++i < collection.size()) builder.append(delimiter);
+    /**
+     * Sends a session update, flushes events that would be too old by the next
+     * tick and, under an adaptive policy, picks the interval to the next tick
+     * from how this one went. Ticks stop while the device is sampled out and
+     * start again once it is sampled in.
+     */
+    private void onTimer() {
+        if (!sampler_.isSampledIn()) {
+            tickTask_ = null;
+            return;
         }
 
-        return builder.toString();
+        try {
+            if (eventQueue_ == null)
+                return;
+
+            boolean congested = queue_.isCongested();
+            boolean pilingUp = sizeFlushesSinceTick_ > 0;
+            boolean idle = !isVisible_ && recordedSinceTick_ == 0;
+            tickInterval_ = flushPolicy_.nextInterval(tickInterval_, congested, pilingUp, idle);
+            recordedSinceTick_ = 0;
+            sizeFlushesSinceTick_ = 0;
+
+            if (isVisible_)
+                queue_.updateSession(takeSessionDuration(System.nanoTime()));
+
+            if (eventQueue_.size() > 0 && flushPolicy_.isOverAge(eventQueue_.oldestAge() + tickInterval_))
+                queue_.recordEvents(eventQueue_.events());
+        } finally {
+            scheduleTick(tickInterval_);
+        }
     }
-
 }
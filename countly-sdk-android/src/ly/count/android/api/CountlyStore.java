@@ -0,0 +1,458 @@
+package ly.count.android.api;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+class CountlyStore {
+    private static final String TAG = "COUNTLY_STORE";
+    private static final String PREFERENCES = "COUNTLY_STORE";
+    private static final String DELIMITER = "===";
+    private static final String CONNECTIONS_PREFERENCE = "CONNECTIONS";
+    private static final String EVENTS_PREFERENCE = "EVENTS";
+    private static final String RETRY_FAILURES_PREFERENCE = "RETRY_FAILURES";
+    private static final String RETRY_NEXT_ATTEMPT_PREFERENCE = "RETRY_NEXT_ATTEMPT";
+    private static final String UPLOAD_DUE_PREFERENCE = "UPLOAD_DUE";
+    private static final String SERVER_URL_PREFERENCE = "SERVER_URL";
+    private static final String APP_KEY_PREFERENCE = "APP_KEY";
+    private static final String LOG_DIRECTORY = "countly";
+    private static final String EVENTS_FILE = "events.bin";
+
+    protected static final int DEFAULT_MAX_CONNECTIONS = 1000;
+    protected static final long DEFAULT_MAX_CONNECTION_BYTES = 1024 * 1024;
+
+    private SharedPreferences preferences;
+    private ConnectionLog connectionLog;
+    private File eventsFile;
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private long maxConnectionBytes = DEFAULT_MAX_CONNECTION_BYTES;
+    private EvictionPolicy evictionPolicy = EvictionPolicy.DROP_OLDEST;
+    private volatile float connectionUsage;
+    private volatile int connectionEvictions;
+
+    protected CountlyStore(Context ctx) {
+        this(ctx, null);
+    }
+
+    /**
+     * Store in its own namespace, so that named Countly instances don't share
+     * queued data. A null namespace is the store used before instances had
+     * names.
+     */
+    protected CountlyStore(Context ctx, String namespace) {
+        String suffix = namespace == null ? "" : "_" + namespace;
+        preferences = ctx.getSharedPreferences(PREFERENCES + suffix, Context.MODE_PRIVATE);
+
+        File dir = new File(ctx.getFilesDir(), LOG_DIRECTORY + suffix);
+        connectionLog = new ConnectionLog(dir);
+        eventsFile = new File(dir, EVENTS_FILE);
+
+        migrateConnections();
+        migrateEvents();
+        updateConnectionUsage();
+    }
+
+    /**
+     * Moves requests queued by older SDK versions in the CONNECTIONS preference
+     * into the connection log, keeping their order.
+     */
+    private void migrateConnections() {
+        String array = preferences.getString(CONNECTIONS_PREFERENCE, null);
+        if (array == null) return;
+
+        if (!"".equals(array))
+            for (String s : array.split(DELIMITER)) connectionLog.append(s);
+
+        preferences.edit().remove(CONNECTIONS_PREFERENCE).commit();
+    }
+
+    public String[] connections() {
+        return connectionLog.readAll();
+    }
+
+    public String[] connections(int max) {
+        return connectionLog.read(max);
+    }
+
+    /**
+     * Rewrites events stored by older SDK versions as delimited JSON in the
+     * EVENTS preference into the binary events file.
+     */
+    private void migrateEvents() {
+        String array = preferences.getString(EVENTS_PREFERENCE, null);
+        if (array == null) return;
+
+        List<Event> events = new ArrayList<Event>();
+        if (!"".equals(array)) {
+            for (String s : array.split(DELIMITER)) {
+                try {
+                    events.add(jsonToEvent(new JSONObject(s)));
+                } catch (JSONException e) {
+                    Log.e(TAG, "Cannot parse Event json", e);
+                }
+            }
+        }
+
+        putEvents(events);
+        preferences.edit().remove(EVENTS_PREFERENCE).commit();
+    }
+
+    public List<Event> eventsList() {
+        List<Event> events = readEvents();
+
+        Collections.sort(events, new Comparator<Event>() {
+            @Override
+            public int compare(Event e1, Event e2) {
+                return e2.timestamp - e1.timestamp;
+            }
+        });
+
+        return events;
+    }
+
+    private List<Event> readEvents() {
+        List<Event> events = new ArrayList<Event>();
+        if (!eventsFile.exists()) return events;
+
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(eventsFile));
+            RecordCodec.Reader reader = new RecordCodec.Reader(in);
+            while (reader.hasNext()) events.add(reader.readEvent());
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read stored events", e);
+        } finally {
+            close(in);
+        }
+
+        return events;
+    }
+
+    public boolean isEmptyConnections() {
+        return connectionLog.isEmpty();
+    }
+
+    public int connectionCount() {
+        return connectionLog.size();
+    }
+
+    public long connectionBytes() {
+        return connectionLog.byteSize();
+    }
+
+    public synchronized void setConnectionLimits(int maxCount, long maxBytes) {
+        maxConnections = maxCount;
+        maxConnectionBytes = maxBytes;
+        trimConnections();
+        updateConnectionUsage();
+    }
+
+    public synchronized void setEvictionPolicy(EvictionPolicy policy) {
+        evictionPolicy = policy;
+    }
+
+    /**
+     * How full the connection log is relative to its limits, 1 or more when
+     * full. Read without locking, so it never waits for a write or a
+     * compaction in progress; it is republished after every change.
+     */
+    public float connectionUsage() {
+        return connectionUsage;
+    }
+
+    private synchronized void updateConnectionUsage() {
+        connectionUsage = Math.max(connectionLog.size() / (float) maxConnections,
+                connectionLog.byteSize() / (float) maxConnectionBytes);
+    }
+
+    public synchronized void addConnection(String str) {
+        Metrics metrics = Metrics.sharedInstance();
+        long start = metrics.start();
+        connectionLog.append(str);
+        metrics.stop(Metrics.Timing.STORE_WRITE, start);
+        metrics.increment(Metrics.Counter.REQUESTS_QUEUED);
+
+        trimConnections();
+        updateConnectionUsage();
+    }
+
+    /**
+     * Queues length bytes of UTF-8 request data from a buffer the caller may
+     * reuse afterwards.
+     */
+    public synchronized void addConnection(byte[] data, int length) {
+        Metrics metrics = Metrics.sharedInstance();
+        long start = metrics.start();
+        connectionLog.append(data, 0, length);
+        metrics.stop(Metrics.Timing.STORE_WRITE, start);
+        metrics.increment(Metrics.Counter.REQUESTS_QUEUED);
+
+        trimConnections();
+        updateConnectionUsage();
+    }
+
+    /**
+     * Once the log goes over either limit, evicts requests according to the
+     * eviction policy until it is back under nine tenths of both, so a full
+     * queue isn't trimmed again on every append. Returns the number of
+     * requests evicted.
+     */
+    private int trimConnections() {
+        if (connectionLog.size() <= maxConnections && connectionLog.byteSize() <= maxConnectionBytes)
+            return 0;
+
+        int excessCount = connectionLog.size() - (maxConnections - maxConnections / 10);
+        long excessBytes = connectionLog.byteSize() - (maxConnectionBytes - maxConnectionBytes / 10);
+
+        List<String> candidates = new ArrayList<String>(Arrays.asList(connectionLog.readAll()));
+        if (evictionPolicy != EvictionPolicy.DROP_OLDEST) {
+            // The sort is stable, so the oldest requests of a priority go first.
+            Collections.sort(candidates, new Comparator<String>() {
+                @Override
+                public int compare(String r1, String r2) {
+                    return requestPriority(r1) - requestPriority(r2);
+                }
+            });
+        }
+
+        List<String> evicted = new ArrayList<String>();
+        for (String request : candidates) {
+            if (excessCount <= 0 && excessBytes <= 0) break;
+
+            evicted.add(request);
+            excessCount--;
+            // Stored requests are URL-encoded, so a char is a byte.
+            excessBytes -= request.length();
+        }
+
+        int removed = connectionLog.remove(evicted);
+        connectionEvictions += removed;
+        Log.w(TAG, "Request queue is full, evicted " + removed + " requests");
+        Metrics.sharedInstance().add(Metrics.Counter.REQUESTS_EVICTED, removed);
+
+        return removed;
+    }
+
+    /**
+     * Merges queued session updates and event uploads, see RequestCompactor.
+     * Must only be called from the thread that sends and removes requests, so
+     * nothing it rewrites is in flight. The backlog is decoded and merged
+     * without holding the store, so recording isn't held up; requests queued
+     * meanwhile are kept after the compacted ones, and the pass is given up if
+     * any were evicted. Returns the number of requests saved.
+     */
+    public int compactConnections() {
+        int evictions = connectionEvictions;
+        List<String> requests = Arrays.asList(connectionLog.readAll());
+        List<String> compacted = RequestCompactor.compact(requests);
+        if (compacted.size() == requests.size()) return 0;
+
+        synchronized (this) {
+            if (connectionEvictions != evictions) return 0;
+
+            List<String> records = new ArrayList<String>(compacted);
+            if (connectionLog.size() > requests.size()) {
+                String[] current = connectionLog.readAll();
+                records.addAll(Arrays.asList(current).subList(requests.size(), current.length));
+            }
+
+            Metrics metrics = Metrics.sharedInstance();
+            long start = metrics.start();
+            connectionLog.rewrite(records);
+            metrics.stop(Metrics.Timing.STORE_WRITE, start);
+            metrics.add(Metrics.Counter.REQUESTS_COMPACTED, requests.size() - compacted.size());
+            updateConnectionUsage();
+        }
+
+        return requests.size() - compacted.size();
+    }
+
+    /**
+     * Session updates can be lost with the least harm, then event uploads;
+     * begin and end requests frame a session on the server.
+     */
+    private static int requestPriority(String data) {
+        if (data.contains("begin_session=") || data.contains("end_session=")) return 2;
+        if (data.contains("events=")) return 1;
+        return 0;
+    }
+
+    public void removeConnection(String str) {
+        Metrics metrics = Metrics.sharedInstance();
+        long start = metrics.start();
+        connectionLog.remove(str);
+        metrics.stop(Metrics.Timing.STORE_WRITE, start);
+        updateConnectionUsage();
+    }
+
+    /**
+     * Removes one stored request for every entry of requests in a single pass
+     * over the log.
+     */
+    public void removeConnections(Collection<String> requests) {
+        Metrics metrics = Metrics.sharedInstance();
+        long start = metrics.start();
+        connectionLog.remove(requests);
+        metrics.stop(Metrics.Timing.STORE_WRITE, start);
+        updateConnectionUsage();
+    }
+
+    public int retryFailures() {
+        return preferences.getInt(RETRY_FAILURES_PREFERENCE, 0);
+    }
+
+    public long retryNextAttempt() {
+        return preferences.getLong(RETRY_NEXT_ATTEMPT_PREFERENCE, 0);
+    }
+
+    public void setRetryState(int failures, long nextAttempt) {
+        preferences.edit()
+                .putInt(RETRY_FAILURES_PREFERENCE, failures)
+                .putLong(RETRY_NEXT_ATTEMPT_PREFERENCE, nextAttempt)
+                .commit();
+    }
+
+    /**
+     * Time the pending deferred upload is due, 0 if there is none.
+     */
+    public long uploadDue() {
+        return preferences.getLong(UPLOAD_DUE_PREFERENCE, 0);
+    }
+
+    public void setUploadDue(long due) {
+        preferences.edit().putLong(UPLOAD_DUE_PREFERENCE, due).commit();
+    }
+
+    public String serverURL() {
+        return preferences.getString(SERVER_URL_PREFERENCE, null);
+    }
+
+    public String appKey() {
+        return preferences.getString(APP_KEY_PREFERENCE, null);
+    }
+
+    /**
+     * Remembers the server and app key of the last init, for uploads started
+     * by a wake-up in a process where the app hasn't initialized the SDK.
+     */
+    public void setServerConfig(String serverURL, String appKey) {
+        if (serverURL.equals(serverURL()) && appKey.equals(appKey())) return;
+
+        preferences.edit()
+                .putString(SERVER_URL_PREFERENCE, serverURL)
+                .putString(APP_KEY_PREFERENCE, appKey)
+                .commit();
+    }
+
+    public void setEvents(Collection<? extends Event> events) {
+        putEvents(events);
+    }
+
+    /**
+     * Writes events to a temporary file and renames it over the events file,
+     * so a crash mid-write leaves the previous snapshot intact.
+     */
+    private synchronized void putEvents(Collection<? extends Event> events) {
+        Metrics metrics = Metrics.sharedInstance();
+        long start = metrics.start();
+        File tmp = new File(eventsFile.getPath() + ".tmp");
+
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(tmp));
+            RecordCodec.Writer writer = new RecordCodec.Writer(out, events.size());
+            for (Event e : events) writer.writeEvent(e);
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(eventsFile))
+                throw new IOException("Cannot replace " + eventsFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write stored events", e);
+        } finally {
+            close(out);
+            metrics.stop(Metrics.Timing.STORE_WRITE, start);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) return;
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot close " + closeable, e);
+        }
+    }
+
+    protected static JSONObject eventToJSON(Event event) {
+        JSONObject json = new JSONObject();
+
+        try {
+            json.put("key", event.key);
+            json.put("count", event.count);
+            json.put("sum", event.sum);
+            json.put("timestamp", event.timestamp);
+
+            if (event.segmentation != null) {
+                json.put("segmentation", new JSONObject(event.segmentation.toMap()));
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        return json;
+    }
+
+    protected static Event jsonToEvent(JSONObject json) {
+        Event event = new Event();
+
+        try {
+            event.key = json.get("key").toString();
+            event.count = Integer.valueOf(json.get("count").toString());
+            event.sum = Double.valueOf(json.get("sum").toString());
+            event.timestamp = Integer.valueOf(json.get("timestamp").toString());
+
+            if (json.has("segmentation")) {
+                JSONObject segm = json.getJSONObject("segmentation");
+                HashMap<String, String> segmentation = new HashMap<String, String>();
+                Iterator nameItr = segm.keys();
+
+                while (nameItr.hasNext()) {
+                    Object obj = nameItr.next();
+                    if (obj instanceof String) {
+                        segmentation.put((String) obj, ((JSONObject) json.get("segmentation")).getString((String) obj));
+                    }
+                }
+
+                event.segmentation = Segmentation.of(segmentation);
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        return event;
+    }
+
+}
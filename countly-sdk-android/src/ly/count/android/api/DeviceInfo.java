@@ -0,0 +1,122 @@
+package ly.count.android.api;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Locale;
+
+import org.OpenUDID.OpenUDID_manager;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.telephony.TelephonyManager;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.Display;
+import android.view.WindowManager;
+
+class DeviceInfo {
+    public static String getUDID() {
+        return OpenUDID_manager.isInitialized() == false ? "REPLACE_UDID" : OpenUDID_manager.getOpenUDID();
+    }
+
+    public static String getOS() {
+        return "Android";
+    }
+
+    public static String getOSVersion() {
+        return android.os.Build.VERSION.RELEASE;
+    }
+
+    public static String getDevice() {
+        return android.os.Build.MODEL;
+    }
+
+    public static String getResolution(Context context) {
+        WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+
+        Display display = wm.getDefaultDisplay();
+
+        DisplayMetrics metrics = new DisplayMetrics();
+        display.getMetrics(metrics);
+
+        return metrics.widthPixels + "x" + metrics.heightPixels;
+    }
+
+    public static String getDensity(Context context) {
+        int density = context.getResources().getDisplayMetrics().densityDpi;
+
+        switch (density) {
+            case DisplayMetrics.DENSITY_LOW:
+                return "LDPI";
+            case DisplayMetrics.DENSITY_MEDIUM:
+                return "MDPI";
+            case DisplayMetrics.DENSITY_TV:
+                return "TVDPI";
+            case DisplayMetrics.DENSITY_HIGH:
+                return "HDPI";
+            case DisplayMetrics.DENSITY_XHIGH:
+                return "XHDPI";
+            case DisplayMetrics.DENSITY_XXHIGH:
+                return "XXHDPI";
+            case DisplayMetrics.DENSITY_XXXHIGH:
+                return "XXXHDPI";
+            default:
+                return "";
+        }
+    }
+
+    public static String getCarrier(Context context) {
+        try {
+            TelephonyManager manager = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+            return manager.getNetworkOperatorName();
+        } catch (NullPointerException npe) {
+            npe.printStackTrace();
+            Log.e("Countly", "No carrier found");
+        }
+        return "";
+    }
+
+    public static String getLocale() {
+        Locale locale = Locale.getDefault();
+        return locale.getLanguage() + "_" + locale.getCountry();
+    }
+
+    public static String appVersion(Context context) {
+        String result = "1.0";
+        try {
+            result = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionName;
+        } catch (NameNotFoundException e) {
+        }
+
+        return result;
+    }
+
+    public static String getMetrics(Context context) {
+        String result = "";
+        JSONObject json = new JSONObject();
+
+        try {
+            json.put("_device", getDevice());
+            json.put("_os", getOS());
+            json.put("_os_version", getOSVersion());
+            json.put("_carrier", getCarrier(context));
+            json.put("_resolution", getResolution(context));
+            json.put("_density", getDensity(context));
+            json.put("_locale", getLocale());
+            json.put("_app_version", appVersion(context));
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        result = json.toString();
+
+        try {
+            result = java.net.URLEncoder.encode(result, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,54 @@
+package ly.count.android.api;
+
+/**
+ * Decides whether this device reports at all.
+ *
+ * The device ID is hashed into a bucket in [0, 1) that never changes for the
+ * device, and the device is sampled in while its bucket is below the sample
+ * rate. Raising the rate therefore only adds devices, and lowering it only
+ * removes the devices with the highest buckets. Until the device ID is known
+ * a device is only in at a rate of 1.
+ */
+class DeviceSampler {
+    private volatile double rate_ = 1;
+    private volatile double bucket_ = -1;
+
+    public void setRate(double rate) {
+        if (!(rate >= 0 && rate <= 1))
+            throw new IllegalArgumentException("rate must be in [0, 1]");
+
+        rate_ = rate;
+    }
+
+    public void setDeviceId(String deviceId) {
+        bucket_ = bucket(deviceId);
+    }
+
+    public boolean isSampledIn() {
+        double rate = rate_;
+        if (rate >= 1) return true;
+
+        double bucket = bucket_;
+        return bucket >= 0 && bucket < rate;
+    }
+
+    /**
+     * 64-bit FNV-1a of the ID, mixed so that similar IDs spread evenly, with
+     * the top 53 bits taken as a fraction.
+     */
+    static double bucket(String deviceId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < deviceId.length(); i++) {
+            hash ^= deviceId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return (hash >>> 11) / (double) (1L << 53);
+    }
+}
@@ -0,0 +1,18 @@
+package ly.count.android.api;
+
+class Event {
+    public String key = null;
+    public Segmentation segmentation = null;
+    public int count = 0;
+    public double sum = 0;
+    public int timestamp = 0;
+
+    public boolean equals(Object o) {
+        if (o == null || !(o instanceof Event)) return false;
+
+        Event e = (Event) o;
+
+        return (key == null ? e.key == null : key.equals(e.key)) &&
+                timestamp == e.timestamp && (segmentation == null ? e.segmentation == null : segmentation.equals(e.segmentation));
+    }
+}
@@ -0,0 +1,64 @@
+package ly.count.android.api;
+
+/**
+ * Limits for one event key, passed to Countly.init. All limits are off until
+ * set; an event is first sampled, then must get a token from the rate limit
+ * and finally fit under the per-minute cap. Events that don't make it are
+ * dropped on the calling thread before they reach the event queue.
+ */
+public class EventLimit {
+    private double rate_ = 0;
+    private int burst_ = 0;
+    private double sampleRatio_ = 1;
+    private int maxPerMinute_ = 0;
+
+    /**
+     * Token bucket allowing eventsPerSecond on average and bursts of up to
+     * burst events. A rate of 0 turns the limit off.
+     */
+    public void setRate(double eventsPerSecond, int burst) {
+        if (eventsPerSecond < 0 || (eventsPerSecond > 0 && burst < 1))
+            throw new IllegalArgumentException("rate must be at least 0 and burst at least 1");
+
+        rate_ = eventsPerSecond;
+        burst_ = burst;
+    }
+
+    /**
+     * Keeps about ratio of the events, picked at random, and scales the count
+     * and sum of those kept by 1 / ratio so totals stay unbiased on the
+     * server.
+     */
+    public void setSampleRatio(double ratio) {
+        if (!(ratio > 0 && ratio <= 1))
+            throw new IllegalArgumentException("ratio must be in (0, 1]");
+
+        sampleRatio_ = ratio;
+    }
+
+    /**
+     * Hard cap on the events kept per minute. 0 turns the cap off.
+     */
+    public void setMaxPerMinute(int max) {
+        if (max < 0)
+            throw new IllegalArgumentException("max must be at least 0");
+
+        maxPerMinute_ = max;
+    }
+
+    double rate() {
+        return rate_;
+    }
+
+    int burst() {
+        return burst_;
+    }
+
+    double sampleRatio() {
+        return sampleRatio_;
+    }
+
+    int maxPerMinute() {
+        return maxPerMinute_;
+    }
+}
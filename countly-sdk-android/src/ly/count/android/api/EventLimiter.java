@@ -0,0 +1,92 @@
+package ly.count.android.api;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Applies the EventLimit of each configured key to recorded events. The set
+ * of keys is fixed when the limiter is created, so looking up a key needs no
+ * locking and keys without limits cost a single map lookup; each limited key
+ * has its own lock.
+ */
+class EventLimiter {
+    private static final long MINUTE = 60L * 1000 * 1000 * 1000;
+
+    private final Map<String, KeyState> states_ = new HashMap<String, KeyState>();
+    private final Random random_ = new Random();
+
+    public EventLimiter(Map<String, EventLimit> limits) {
+        for (Map.Entry<String, EventLimit> entry : limits.entrySet())
+            states_.put(entry.getKey(), new KeyState(entry.getValue()));
+    }
+
+    /**
+     * Returns the weight to scale the count and sum of an event with key by,
+     * or 0 if the event should be dropped.
+     */
+    public double admit(String key) {
+        KeyState state = states_.get(key);
+        return state == null ? 1 : state.admit(System.nanoTime());
+    }
+
+    /**
+     * Scales count by weight, rounding up or down at random in proportion to
+     * the fraction so the expected value is exact.
+     */
+    public int scale(int count, double weight) {
+        double scaled = count * weight;
+        double floor = Math.floor(scaled);
+        return (int) floor + (random_.nextDouble() < scaled - floor ? 1 : 0);
+    }
+
+    private static class KeyState {
+        private final double rate_;
+        private final int burst_;
+        private final double sampleRatio_;
+        private final int maxPerMinute_;
+        private final Random random_ = new Random();
+
+        private double tokens_;
+        private long refilled_;
+        private long windowStart_;
+        private int windowCount_;
+
+        KeyState(EventLimit limit) {
+            rate_ = limit.rate();
+            burst_ = limit.burst();
+            sampleRatio_ = limit.sampleRatio();
+            maxPerMinute_ = limit.maxPerMinute();
+
+            tokens_ = burst_;
+            refilled_ = System.nanoTime();
+            windowStart_ = refilled_;
+        }
+
+        synchronized double admit(long now) {
+            if (sampleRatio_ < 1 && random_.nextDouble() >= sampleRatio_)
+                return 0;
+
+            if (rate_ > 0) {
+                tokens_ = Math.min(burst_, tokens_ + (now - refilled_) * rate_ / 1e9);
+                refilled_ = now;
+
+                if (tokens_ < 1) return 0;
+            }
+
+            if (maxPerMinute_ > 0) {
+                if (now - windowStart_ >= MINUTE) {
+                    windowStart_ = now;
+                    windowCount_ = 0;
+                }
+
+                if (windowCount_ >= maxPerMinute_) return 0;
+                windowCount_++;
+            }
+
+            if (rate_ > 0) tokens_--;
+
+            return 1 / sampleRatio_;
+        }
+    }
+}
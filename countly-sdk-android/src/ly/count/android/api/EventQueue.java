@@ -0,0 +1,378 @@
+package ly.count.android.api;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.json.JSONArray;
+
+import android.util.Log;
+
+class EventQueue {
+    protected static final int DEFAULT_WRITE_BEHIND_SECONDS = 10;
+    protected static final int DEFAULT_WRITE_BEHIND_MUTATIONS = 50;
+    protected static final int DEFAULT_MAX_EVENTS = 500;
+    protected static final int DEFAULT_MAX_EVENT_BYTES = 64 * 1024;
+
+    private CountlyStore countlyStore_;
+    private Timer timer_;
+    private Actor actor_;
+    private TimerTask writeBehindTask_;
+    private boolean flushScheduled_;
+    private int writeBehindSeconds_ = DEFAULT_WRITE_BEHIND_SECONDS;
+    private int writeBehindMutations_ = DEFAULT_WRITE_BEHIND_MUTATIONS;
+    private boolean paused_;
+    private int mutations_;
+    private final Map<EventKey, Aggregate> events_ = new LinkedHashMap<EventKey, Aggregate>();
+    private int maxEvents_ = DEFAULT_MAX_EVENTS;
+    private int maxBytes_ = DEFAULT_MAX_EVENT_BYTES;
+    private int bytes_;
+    private long firstRecorded_;
+    private volatile float usage_;
+    private EvictionPolicy evictionPolicy_ = EvictionPolicy.DROP_OLDEST;
+    private final Map<String, Integer> priorities_ = new HashMap<String, Integer>();
+
+    private final Runnable persistTask_ = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled_ = false;
+            persist(false);
+        }
+    };
+
+    /**
+     * Apart from construction, an EventQueue is only used from the actor
+     * thread, which is also where its snapshots are written.
+     */
+    public EventQueue(CountlyStore countlyStore, Timer timer, Actor actor) {
+        countlyStore_ = countlyStore;
+        timer_ = timer;
+        actor_ = actor;
+
+        for (Event e : countlyStore_.eventsList())
+            add(e.key, e.segmentation, e.count, e.sum, e.timestamp, e.timestamp * 1000L);
+        updateUsage();
+
+        setWriteBehind(DEFAULT_WRITE_BEHIND_SECONDS, DEFAULT_WRITE_BEHIND_MUTATIONS);
+    }
+
+    /**
+     * Sets how often the aggregated events are written to the store: every
+     * seconds seconds if anything changed, or as soon as mutations events have
+     * been recorded since the last write.
+     */
+    public void setWriteBehind(int seconds, int mutations) {
+        writeBehindSeconds_ = seconds;
+        writeBehindMutations_ = mutations;
+
+        if (!paused_) scheduleWriteBehind();
+    }
+
+    /**
+     * Writes pending changes and stops the periodic write-behind, for while
+     * nothing can be recorded.
+     */
+    public void pause() {
+        paused_ = true;
+
+        if (writeBehindTask_ != null) {
+            writeBehindTask_.cancel();
+            writeBehindTask_ = null;
+        }
+
+        persist(false);
+    }
+
+    public void resume() {
+        if (!paused_) return;
+
+        paused_ = false;
+        scheduleWriteBehind();
+    }
+
+    private void scheduleWriteBehind() {
+        if (writeBehindTask_ != null)
+            writeBehindTask_.cancel();
+
+        writeBehindTask_ = new TimerTask() {
+            @Override
+            public void run() {
+                actor_.post(persistTask_);
+            }
+        };
+        timer_.schedule(writeBehindTask_, writeBehindSeconds_ * 1000L, writeBehindSeconds_ * 1000L);
+    }
+
+    /**
+     * Sets how many distinct events, and about how many bytes of them, are
+     * kept before the eviction policy kicks in.
+     */
+    public void setLimits(int maxEvents, int maxBytes) {
+        maxEvents_ = maxEvents;
+        maxBytes_ = maxBytes;
+
+        if (isOverLimits()) evict();
+        updateUsage();
+    }
+
+    public void setEvictionPolicy(EvictionPolicy policy) {
+        evictionPolicy_ = policy;
+    }
+
+    public void setPriority(String key, int priority) {
+        priorities_.put(key, priority);
+    }
+
+    public int size() {
+        return events_.size();
+    }
+
+    /**
+     * Approximate size of the aggregated events in bytes.
+     */
+    public int bytes() {
+        return bytes_;
+    }
+
+    /**
+     * Milliseconds since the oldest aggregated event was first recorded, 0
+     * if there are none. Aggregates loaded from the store count from their
+     * stored timestamp.
+     */
+    public long oldestAge() {
+        if (events_.isEmpty())
+            return 0;
+
+        return Math.max(0, System.currentTimeMillis() - firstRecorded_);
+    }
+
+    /**
+     * How full the table is relative to its limits, 1 or more when full.
+     * Unlike the rest of the queue, this may be called from any thread.
+     */
+    public float usage() {
+        return usage_;
+    }
+
+    public String events() {
+        String result = "";
+
+        JSONArray eventArray = new JSONArray();
+        for (Event e : events_.values()) eventArray.put(CountlyStore.eventToJSON(e));
+
+        result = eventArray.toString();
+
+        events_.clear();
+        bytes_ = 0;
+        updateUsage();
+        persist(true);
+
+        try {
+            result = java.net.URLEncoder.encode(result, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+
+        }
+
+        return result;
+    }
+
+    public void recordEvent(String key) {
+        recordEvent(key, null, 1, 0);
+    }
+
+    public void recordEvent(String key, int count) {
+        recordEvent(key, null, count, 0);
+    }
+
+    public void recordEvent(String key, int count, double sum) {
+        recordEvent(key, null, count, sum);
+    }
+
+    public void recordEvent(String key, Map<String, String> segmentation, int count) {
+        recordEvent(key, segmentation, count, 0);
+    }
+
+    public void recordEvent(String key, Map<String, String> segmentation, int count, double sum) {
+        recordEvent(key, segmentation, count, sum, (int) (System.currentTimeMillis() / 1000));
+    }
+
+    public void recordEvent(String key, Map<String, String> segmentation, int count, double sum, int timestamp) {
+        recordEvent(key, Segmentation.of(segmentation), count, sum, timestamp);
+    }
+
+    public void recordEvent(String key, Segmentation segmentation, int count, double sum, int timestamp) {
+        Metrics metrics = Metrics.sharedInstance();
+        metrics.increment(Metrics.Counter.EVENTS_RECORDED);
+        if (add(key, segmentation, count, sum, timestamp, timestamp * 1000L))
+            metrics.increment(Metrics.Counter.EVENTS_AGGREGATED);
+
+        if (isOverLimits()) evict();
+        updateUsage();
+
+        if (++mutations_ >= writeBehindMutations_ && !flushScheduled_) {
+            flushScheduled_ = true;
+            actor_.post(persistTask_);
+        }
+    }
+
+    /**
+     * Adds to the aggregate for key and segmentation, as recorded at recorded
+     * milliseconds. Returns true if the aggregate already existed.
+     */
+    private boolean add(String key, Segmentation segmentation, int count, double sum, int timestamp, long recorded) {
+        if (events_.isEmpty() || recorded < firstRecorded_)
+            firstRecorded_ = recorded;
+
+        EventKey eventKey = new EventKey(key, segmentation);
+        Aggregate event = events_.get(eventKey);
+        boolean existed = event != null;
+
+        if (event == null) {
+            event = new Aggregate();
+            event.key = key;
+            event.segmentation = eventKey.segmentation;
+            event.timestamp = timestamp;
+            event.firstRecorded = recorded;
+            events_.put(eventKey, event);
+            bytes_ += sizeOf(event);
+        } else {
+            // Epoch seconds, summed as longs since two of them overflow an int.
+            event.timestamp = (int) (((long) event.timestamp + timestamp) / 2);
+            event.firstRecorded = Math.min(event.firstRecorded, recorded);
+        }
+
+        event.count += count;
+        event.sum += sum;
+
+        return existed;
+    }
+
+    private boolean isOverLimits() {
+        return events_.size() > maxEvents_ || (bytes_ > maxBytes_ && !events_.isEmpty());
+    }
+
+    /**
+     * Brings the table back within its limits. Folding merges the oldest
+     * segmented events into their key's unsegmented aggregate; whatever is
+     * still over the limits is dropped, oldest or lowest priority first.
+     */
+    private void evict() {
+        int shed = 0;
+
+        if (evictionPolicy_ == EvictionPolicy.FOLD_EVENTS) {
+            for (EventKey key : new ArrayList<EventKey>(events_.keySet())) {
+                if (!isOverLimits()) break;
+                if (key.segmentation == null) continue;
+
+                Aggregate event = events_.remove(key);
+                bytes_ -= sizeOf(event);
+                add(event.key, null, event.count, event.sum, event.timestamp, event.firstRecorded);
+            }
+        }
+
+        while (isOverLimits()) {
+            EventKey victim = evictionPolicy_ == EvictionPolicy.DROP_LOWEST_PRIORITY
+                    ? lowestPriority() : events_.keySet().iterator().next();
+            bytes_ -= sizeOf(events_.remove(victim));
+            shed++;
+        }
+
+        if (shed > 0) {
+            Log.w("Countly", "Event queue is full, dropped " + shed + " events");
+            Metrics.sharedInstance().add(Metrics.Counter.EVENTS_DROPPED, shed);
+
+            // The oldest event may have been among those dropped.
+            firstRecorded_ = Long.MAX_VALUE;
+            for (Aggregate event : events_.values())
+                firstRecorded_ = Math.min(firstRecorded_, event.firstRecorded);
+        }
+    }
+
+    private EventKey lowestPriority() {
+        EventKey lowest = null;
+        int lowestPriority = Integer.MAX_VALUE;
+
+        for (EventKey key : events_.keySet()) {
+            Integer priority = priorities_.get(key.key);
+            int p = priority == null ? 0 : priority;
+            if (p < lowestPriority) {
+                lowest = key;
+                lowestPriority = p;
+            }
+        }
+
+        return lowest;
+    }
+
+    private void updateUsage() {
+        usage_ = Math.max(events_.size() / (float) maxEvents_, bytes_ / (float) maxBytes_);
+    }
+
+    /**
+     * Rough size of an event in the stored record format, counting a char as
+     * a byte.
+     */
+    private static int sizeOf(Event event) {
+        int size = 24 + (event.key == null ? 0 : event.key.length());
+
+        Segmentation segmentation = event.segmentation;
+        if (segmentation != null) {
+            for (int i = 0; i < segmentation.size(); i++) {
+                size += 2 + segmentation.key(i).length();
+                size += segmentation.value(i) == null ? 0 : segmentation.value(i).length();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Writes a snapshot of the aggregation table to the store.
+     */
+    private void persist(boolean force) {
+        if (mutations_ == 0 && !force) return;
+        mutations_ = 0;
+
+        countlyStore_.setEvents(events_.values());
+    }
+
+    /**
+     * An aggregated event and when the oldest event in it was recorded, in
+     * milliseconds. Its timestamp is averaged as events are added, so it
+     * can't tell.
+     */
+    private static class Aggregate extends Event {
+        long firstRecorded;
+    }
+
+    static class EventKey {
+        final String key;
+        final Segmentation segmentation;
+        final int hash;
+
+        EventKey(String key, Segmentation segmentation) {
+            this.key = key;
+            this.segmentation = segmentation;
+            hash = 31 * (key == null ? 0 : key.hashCode()) + (segmentation == null ? 0 : segmentation.hashCode());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof EventKey)) return false;
+
+            EventKey k = (EventKey) o;
+
+            return hash == k.hash && (key == null ? k.key == null : key.equals(k.key)) &&
+                    (segmentation == null ? k.segmentation == null : segmentation.equals(k.segmentation));
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package ly.count.android.api;
+
+/**
+ * What to give up when the stored requests or the aggregated events reach
+ * their limits.
+ */
+public enum EvictionPolicy {
+    /**
+     * Drop the oldest data first.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Drop the data that matters least first: session updates before event
+     * uploads before session begin and end requests, and events with the
+     * lowest priority set by Countly.setEventPriority. Ties go to the oldest.
+     */
+    DROP_LOWEST_PRIORITY,
+
+    /**
+     * Fold segmented events into a single unsegmented aggregate per key,
+     * keeping counts and sums but losing the breakdown, before dropping the
+     * oldest data. Stored requests are already encoded and are dropped by
+     * priority.
+     */
+    FOLD_EVENTS
+}
@@ -0,0 +1,149 @@
+package ly.count.android.api;
+
+/**
+ * When recorded events are turned into an upload, set with
+ * Countly.setFlushPolicy.
+ *
+ * Events are flushed once maxEvents distinct events or about maxBytes bytes of
+ * them are waiting, and, if enabled, when a session ends. A tick every
+ * interval milliseconds sends a session update and flushes the events if the
+ * oldest would be older than maxAge by the next tick. The defaults are close
+ * to the SDK's original behaviour: 10 events, no byte limit, a tick every 60
+ * seconds that flushes whatever is waiting and a flush at the end of each
+ * session.
+ *
+ * In adaptive mode the tick interval moves between minInterval and
+ * maxInterval: it doubles while uploads are backing up or the app is idle,
+ * halves while events pile up fast enough to hit the count or byte limits
+ * between ticks, and otherwise drifts back to interval.
+ */
+public class FlushPolicy {
+    protected static final int DEFAULT_MAX_EVENTS = 10;
+    protected static final int DEFAULT_MAX_BYTES = 0;
+    protected static final long DEFAULT_MAX_AGE = 60 * 1000;
+    protected static final long DEFAULT_INTERVAL = 60 * 1000;
+
+    private int maxEvents_ = DEFAULT_MAX_EVENTS;
+    private int maxBytes_ = DEFAULT_MAX_BYTES;
+    private long maxAge_ = DEFAULT_MAX_AGE;
+    private boolean onSessionEnd_ = true;
+    private long interval_ = DEFAULT_INTERVAL;
+    private boolean adaptive_ = false;
+    private long minInterval_ = DEFAULT_INTERVAL;
+    private long maxInterval_ = DEFAULT_INTERVAL;
+
+    public FlushPolicy() {
+    }
+
+    private FlushPolicy(FlushPolicy policy) {
+        maxEvents_ = policy.maxEvents_;
+        maxBytes_ = policy.maxBytes_;
+        maxAge_ = policy.maxAge_;
+        onSessionEnd_ = policy.onSessionEnd_;
+        interval_ = policy.interval_;
+        adaptive_ = policy.adaptive_;
+        minInterval_ = policy.minInterval_;
+        maxInterval_ = policy.maxInterval_;
+    }
+
+    /**
+     * Flush once maxEvents distinct events or about maxBytes bytes are
+     * waiting. 0 turns a trigger off.
+     */
+    public void setSizeTriggers(int maxEvents, int maxBytes) {
+        if (maxEvents < 0 || maxBytes < 0)
+            throw new IllegalArgumentException("triggers must be at least 0");
+
+        maxEvents_ = maxEvents;
+        maxBytes_ = maxBytes;
+    }
+
+    /**
+     * Flush on the last tick before the oldest waiting event is maxAge
+     * milliseconds old. 0 turns the trigger off; events then wait for another
+     * trigger.
+     */
+    public void setMaxAge(long maxAge) {
+        if (maxAge < 0)
+            throw new IllegalArgumentException("maxAge must be at least 0");
+
+        maxAge_ = maxAge;
+    }
+
+    /**
+     * Whether the events waiting when a session ends are flushed with it.
+     */
+    public void setFlushOnSessionEnd(boolean enabled) {
+        onSessionEnd_ = enabled;
+    }
+
+    /**
+     * Fixed tick interval in milliseconds.
+     */
+    public void setInterval(long interval) {
+        if (interval < 1000)
+            throw new IllegalArgumentException("interval must be at least 1000");
+
+        interval_ = interval;
+        adaptive_ = false;
+        minInterval_ = interval;
+        maxInterval_ = interval;
+    }
+
+    /**
+     * Tick interval that starts at interval and adapts between minInterval
+     * and maxInterval milliseconds.
+     */
+    public void setAdaptiveInterval(long interval, long minInterval, long maxInterval) {
+        if (minInterval < 1000 || interval < minInterval || maxInterval < interval)
+            throw new IllegalArgumentException("need 1000 <= minInterval <= interval <= maxInterval");
+
+        interval_ = interval;
+        adaptive_ = true;
+        minInterval_ = minInterval;
+        maxInterval_ = maxInterval;
+    }
+
+    /**
+     * The SDK keeps a copy, so later changes to a policy passed to it have no
+     * effect.
+     */
+    FlushPolicy copy() {
+        return new FlushPolicy(this);
+    }
+
+    boolean flushOnSessionEnd() {
+        return onSessionEnd_;
+    }
+
+    long interval() {
+        return interval_;
+    }
+
+    boolean isOverSize(int events, int bytes) {
+        return (maxEvents_ > 0 && events >= maxEvents_) || (maxBytes_ > 0 && bytes >= maxBytes_);
+    }
+
+    boolean isOverAge(long age) {
+        return maxAge_ > 0 && age >= maxAge_;
+    }
+
+    /**
+     * The tick interval to use after a tick with the given conditions.
+     */
+    long nextInterval(long current, boolean congested, boolean pilingUp, boolean idle) {
+        if (!adaptive_)
+            return interval_;
+
+        if (congested || idle)
+            return Math.min(maxInterval_, current * 2);
+
+        if (pilingUp)
+            return Math.max(minInterval_, current / 2);
+
+        if (current > interval_)
+            return Math.max(interval_, current / 2);
+
+        return Math.min(interval_, current * 2);
+    }
+}
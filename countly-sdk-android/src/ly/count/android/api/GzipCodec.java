@@ -0,0 +1,24 @@
+package ly.count.android.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Default {@link PayloadCodec}, compressing request bodies with gzip.
+ */
+public class GzipCodec implements PayloadCodec {
+    @Override
+    public String contentEncoding() {
+        return "gzip";
+    }
+
+    @Override
+    public byte[] encode(byte[] data) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 2 + 32);
+        GZIPOutputStream gzip = new GZIPOutputStream(output);
+        gzip.write(data);
+        gzip.close();
+        return output.toByteArray();
+    }
+}
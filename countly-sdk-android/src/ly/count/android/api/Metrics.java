@@ -0,0 +1,106 @@
+package ly.count.android.api;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide counters and latency histograms describing what the SDK does
+ * and what it costs.
+ *
+ * Nothing is collected until collection is enabled, which Countly does while a
+ * metrics listener is registered or after setMetricsEnabled(true). While it is
+ * disabled every call here is a single volatile read, and timings don't even
+ * read the clock.
+ */
+class Metrics {
+    enum Counter {
+        EVENTS_RECORDED, EVENTS_AGGREGATED, EVENTS_DROPPED, EVENTS_LIMITED,
+        REQUESTS_QUEUED, REQUESTS_EVICTED, REQUESTS_COMPACTED, REQUESTS_SENT, BYTES_SENT,
+        RETRIES, TIMEOUTS, NETWORK_FAILURES, SERVER_ERRORS
+    }
+
+    enum Timing {
+        SEND, STORE_WRITE, DEVICE_METRICS
+    }
+
+    private static final Counter[] COUNTERS = Counter.values();
+    private static final Timing[] TIMINGS = Timing.values();
+    private static final Metrics sharedInstance_ = new Metrics();
+
+    private volatile boolean enabled_ = false;
+    private final AtomicLongArray counters_ = new AtomicLongArray(COUNTERS.length);
+    private final Histogram[] timings_ = new Histogram[TIMINGS.length];
+
+    static Metrics sharedInstance() {
+        return sharedInstance_;
+    }
+
+    private Metrics() {
+        for (int i = 0; i < timings_.length; i++) timings_[i] = new Histogram();
+    }
+
+    public void setEnabled(boolean enabled) {
+        enabled_ = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled_;
+    }
+
+    public void increment(Counter counter) {
+        if (enabled_) counters_.incrementAndGet(counter.ordinal());
+    }
+
+    public void add(Counter counter, long delta) {
+        if (enabled_ && delta != 0) counters_.addAndGet(counter.ordinal(), delta);
+    }
+
+    /**
+     * Returns a start time to pass to {@link #stop(Timing, long)}, or 0 when
+     * collection is disabled.
+     */
+    public long start() {
+        return enabled_ ? System.nanoTime() : 0;
+    }
+
+    public void stop(Timing timing, long start) {
+        if (start != 0) timings_[timing.ordinal()].record((System.nanoTime() - start) / 1000);
+    }
+
+    public MetricsSnapshot snapshot(int queueDepth, long queueBytes) {
+        long[] counters = new long[COUNTERS.length];
+        for (int i = 0; i < counters.length; i++) counters[i] = counters_.get(i);
+
+        MetricsSnapshot.Histogram[] timings = new MetricsSnapshot.Histogram[TIMINGS.length];
+        for (int i = 0; i < timings.length; i++) timings[i] = timings_[i].snapshot();
+
+        return new MetricsSnapshot(counters, timings, queueDepth, queueBytes);
+    }
+
+    /**
+     * Durations in microseconds, bucketed by powers of two: bucket i holds
+     * durations below 2^i and at least 2^(i-1).
+     */
+    private static class Histogram {
+        private final AtomicLongArray buckets_ = new AtomicLongArray(MetricsSnapshot.Histogram.BUCKETS);
+        private final AtomicLong count_ = new AtomicLong();
+        private final AtomicLong sum_ = new AtomicLong();
+        private final AtomicLong max_ = new AtomicLong();
+
+        void record(long micros) {
+            int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), MetricsSnapshot.Histogram.BUCKETS - 1);
+            buckets_.incrementAndGet(bucket);
+            count_.incrementAndGet();
+            sum_.addAndGet(micros);
+
+            long max = max_.get();
+            while (micros > max && !max_.compareAndSet(max, micros)) max = max_.get();
+        }
+
+        MetricsSnapshot.Histogram snapshot() {
+            long[] buckets = new long[MetricsSnapshot.Histogram.BUCKETS];
+            for (int i = 0; i < buckets.length; i++) buckets[i] = buckets_.get(i);
+            return new MetricsSnapshot.Histogram(buckets, count_.get(), sum_.get(), max_.get());
+        }
+    }
+}
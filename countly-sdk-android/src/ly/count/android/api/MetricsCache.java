@@ -0,0 +1,95 @@
+package ly.count.android.api;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+/**
+ * Holds the URL-encoded device metrics sent with begin_session.
+ *
+ * The metrics are computed on the timer thread when the cache is created and
+ * reused for every session after that. A configuration or locale change clears
+ * them and schedules a new computation. The app version can only change with a
+ * new process, so a process never needs to recompute for that reason.
+ */
+class MetricsCache {
+    private final Context context_;
+    private final Timer timer_;
+    private volatile String metrics_;
+    private int generation_;
+
+    private final BroadcastReceiver receiver_ = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    };
+
+    public MetricsCache(Context context, Timer timer) {
+        // The receiver stays registered for the life of the process, which an
+        // activity's context doesn't have.
+        context_ = context.getApplicationContext();
+        timer_ = timer;
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_CONFIGURATION_CHANGED);
+        filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        context_.registerReceiver(receiver_, filter);
+
+        refresh();
+    }
+
+    /**
+     * Returns the cached metrics, computing them on the calling thread only if
+     * the background computation has not finished yet.
+     */
+    public String get() {
+        String metrics = metrics_;
+        if (metrics != null) return metrics;
+
+        return compute(currentGeneration());
+    }
+
+    public void invalidate() {
+        synchronized (this) {
+            generation_++;
+            metrics_ = null;
+        }
+
+        refresh();
+    }
+
+    private void refresh() {
+        final int generation = currentGeneration();
+
+        timer_.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                compute(generation);
+            }
+        }, 0);
+    }
+
+    private String compute(int generation) {
+        Metrics instrumentation = Metrics.sharedInstance();
+        long start = instrumentation.start();
+        String metrics = DeviceInfo.getMetrics(context_);
+        instrumentation.stop(Metrics.Timing.DEVICE_METRICS, start);
+
+        synchronized (this) {
+            // Metrics computed before an invalidation may be stale, hand them
+            // back to the caller but don't keep them.
+            if (generation == generation_) metrics_ = metrics;
+        }
+
+        return metrics;
+    }
+
+    private synchronized int currentGeneration() {
+        return generation_;
+    }
+}
@@ -0,0 +1,9 @@
+package ly.count.android.api;
+
+/**
+ * Receives SDK metrics periodically, see Countly.setMetricsListener. Called on
+ * the SDK's timer thread, so implementations should return quickly.
+ */
+public interface MetricsListener {
+    void onMetrics(MetricsSnapshot snapshot);
+}
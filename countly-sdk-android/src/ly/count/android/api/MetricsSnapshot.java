@@ -0,0 +1,194 @@
+package ly.count.android.api;
+
+/**
+ * Immutable view of the SDK's metrics at one point in time, from
+ * Countly.metrics() or a {@link MetricsListener}. Counters are totals since
+ * collection was first enabled in this process.
+ */
+public final class MetricsSnapshot {
+    private final long[] counters_;
+    private final Histogram[] timings_;
+    private final int queueDepth_;
+    private final long queueBytes_;
+
+    MetricsSnapshot(long[] counters, Histogram[] timings, int queueDepth, long queueBytes) {
+        counters_ = counters;
+        timings_ = timings;
+        queueDepth_ = queueDepth;
+        queueBytes_ = queueBytes;
+    }
+
+    /**
+     * Events handed to the event queue.
+     */
+    public long eventsRecorded() {
+        return counter(Metrics.Counter.EVENTS_RECORDED);
+    }
+
+    /**
+     * Recorded events merged into an event already waiting with the same key
+     * and segmentation.
+     */
+    public long eventsAggregated() {
+        return counter(Metrics.Counter.EVENTS_AGGREGATED);
+    }
+
+    /**
+     * Events lost to a full mailbox, shed by tryRecordEvent or evicted.
+     */
+    public long eventsDropped() {
+        return counter(Metrics.Counter.EVENTS_DROPPED);
+    }
+
+    /**
+     * Events rejected by sampling, a rate limit or a per-minute cap set with
+     * Countly.init.
+     */
+    public long eventsLimited() {
+        return counter(Metrics.Counter.EVENTS_LIMITED);
+    }
+
+    public long requestsQueued() {
+        return counter(Metrics.Counter.REQUESTS_QUEUED);
+    }
+
+    public long requestsEvicted() {
+        return counter(Metrics.Counter.REQUESTS_EVICTED);
+    }
+
+    /**
+     * Queued requests saved by merging them into others.
+     */
+    public long requestsCompacted() {
+        return counter(Metrics.Counter.REQUESTS_COMPACTED);
+    }
+
+    public long requestsSent() {
+        return counter(Metrics.Counter.REQUESTS_SENT);
+    }
+
+    /**
+     * Request bytes handed to the transport, after compression, including
+     * attempts that failed.
+     */
+    public long bytesSent() {
+        return counter(Metrics.Counter.BYTES_SENT);
+    }
+
+    /**
+     * Attempts made after a failed one.
+     */
+    public long retries() {
+        return counter(Metrics.Counter.RETRIES);
+    }
+
+    public long timeouts() {
+        return counter(Metrics.Counter.TIMEOUTS);
+    }
+
+    /**
+     * Attempts that failed to connect or lost the connection, other than
+     * timeouts.
+     */
+    public long networkFailures() {
+        return counter(Metrics.Counter.NETWORK_FAILURES);
+    }
+
+    /**
+     * Attempts the server answered with an error status.
+     */
+    public long serverErrors() {
+        return counter(Metrics.Counter.SERVER_ERRORS);
+    }
+
+    /**
+     * Requests waiting to be sent when the snapshot was taken.
+     */
+    public int queueDepth() {
+        return queueDepth_;
+    }
+
+    public long queueBytes() {
+        return queueBytes_;
+    }
+
+    /**
+     * Time from handing a request to the transport to its response, for
+     * requests the server answered.
+     */
+    public Histogram sendLatency() {
+        return timings_[Metrics.Timing.SEND.ordinal()];
+    }
+
+    /**
+     * Time spent writing events and requests to storage.
+     */
+    public Histogram storeWrites() {
+        return timings_[Metrics.Timing.STORE_WRITE.ordinal()];
+    }
+
+    /**
+     * Time spent collecting the device metrics sent with begin_session.
+     */
+    public Histogram deviceMetrics() {
+        return timings_[Metrics.Timing.DEVICE_METRICS.ordinal()];
+    }
+
+    private long counter(Metrics.Counter counter) {
+        return counters_[counter.ordinal()];
+    }
+
+    /**
+     * Distribution of durations in microseconds, with power-of-two resolution.
+     */
+    public static final class Histogram {
+        static final int BUCKETS = 40;
+
+        private final long[] buckets_;
+        private final long count_;
+        private final long sum_;
+        private final long max_;
+
+        Histogram(long[] buckets, long count, long sum, long max) {
+            buckets_ = buckets;
+            count_ = count;
+            sum_ = sum;
+            max_ = max;
+        }
+
+        public long count() {
+            return count_;
+        }
+
+        public long totalMicros() {
+            return sum_;
+        }
+
+        public long maxMicros() {
+            return max_;
+        }
+
+        public double meanMicros() {
+            return count_ == 0 ? 0 : sum_ / (double) count_;
+        }
+
+        /**
+         * Upper bound of the bucket holding the given percentile, between 0
+         * and 100, capped at the largest duration seen.
+         */
+        public long percentileMicros(double percentile) {
+            long total = 0;
+            for (long n : buckets_) total += n;
+            if (total == 0) return 0;
+
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets_.length; i++) {
+                seen += buckets_[i];
+                if (seen >= rank && seen > 0) return Math.min(i == 0 ? 0 : (1L << i) - 1, max_);
+            }
+
+            return max_;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package ly.count.android.api;
+
+import java.io.IOException;
+
+/**
+ * Compresses request bodies sent to the Countly server. The server must
+ * understand the value returned by {@link #contentEncoding()}; requests it
+ * rejects are resent without compression.
+ */
+public interface PayloadCodec {
+    /**
+     * Value of the Content-Encoding header for bodies produced by this codec.
+     */
+    String contentEncoding();
+
+    byte[] encode(byte[] data) throws IOException;
+}
@@ -0,0 +1,126 @@
+package ly.count.android.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+/**
+ * Default {@link Transport}, a process-wide Apache HTTP client.
+ *
+ * Connections are pooled and kept alive between requests, so a backlog is
+ * drained over one TCP (and TLS) connection instead of paying a handshake per
+ * request. Response bodies are read through a reusable buffer so the connection
+ * can go back to the pool.
+ */
+public class PooledHttpTransport implements Transport {
+    protected static final int DEFAULT_CONNECT_TIMEOUT = 30 * 1000;
+    protected static final int DEFAULT_READ_TIMEOUT = 30 * 1000;
+    private static final int MAX_CONNECTIONS = 2;
+
+    private static PooledHttpTransport sharedInstance_;
+
+    private final DefaultHttpClient client_;
+    private final byte[] buffer_ = new byte[4096];
+
+    public static synchronized PooledHttpTransport sharedInstance() {
+        if (sharedInstance_ == null)
+            sharedInstance_ = new PooledHttpTransport();
+
+        return sharedInstance_;
+    }
+
+    private PooledHttpTransport() {
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, "UTF-8");
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        HttpConnectionParams.setConnectionTimeout(params, DEFAULT_CONNECT_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, DEFAULT_READ_TIMEOUT);
+        ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        ClientConnectionManager manager = new ThreadSafeClientConnManager(params, registry);
+        client_ = new DefaultHttpClient(manager, params);
+    }
+
+    /**
+     * Applies to every instance using the shared client, and to requests
+     * started after the call.
+     */
+    @Override
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        HttpParams params = client_.getParams();
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, readTimeout);
+    }
+
+    @Override
+    public int get(String url) throws IOException {
+        return execute(new HttpGet(uri(url)));
+    }
+
+    @Override
+    public int post(String url, String contentType, String contentEncoding, byte[] body) throws IOException {
+        HttpPost method = new HttpPost(uri(url));
+        ByteArrayEntity entity = new ByteArrayEntity(body);
+        entity.setContentType(contentType);
+        if (contentEncoding != null) entity.setContentEncoding(contentEncoding);
+        method.setEntity(entity);
+        return execute(method);
+    }
+
+    private synchronized int execute(HttpUriRequest method) throws IOException {
+        HttpResponse response;
+        try {
+            response = client_.execute(method);
+        } catch (IOException e) {
+            method.abort();
+            throw e;
+        }
+
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            InputStream input = entity.getContent();
+            try {
+                while (input.read(buffer_) != -1)
+                    ;
+            } finally {
+                input.close();
+            }
+        }
+
+        return response.getStatusLine().getStatusCode();
+    }
+
+    private static URI uri(String url) throws IOException {
+        try {
+            return new URI(url);
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid URL " + url);
+        }
+    }
+}
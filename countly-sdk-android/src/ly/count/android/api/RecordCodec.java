@@ -0,0 +1,229 @@
+package ly.count.android.api;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary format for stored events.
+ *
+ * A stream starts with a format version byte, followed by the number of
+ * records and the records themselves. Integers are written as base-128 varints
+ * (zigzag encoded when they may be negative), sums as 8-byte IEEE doubles and
+ * strings as a varint length followed by UTF-8 bytes. Lengths and counts are
+ * stored plus one so that 0 can mark a null string or segmentation.
+ *
+ * An event record is: key, count, sum, timestamp, then the number of
+ * segmentation entries followed by alternating keys and values.
+ *
+ * Since version 2, event keys and segmentation strings are dictionary
+ * encoded: the first occurrence of a string in a stream is written in full
+ * and numbered, later ones only as its number. A dictionary string is a
+ * varint that is 0 for null, (number << 1) | 1 for a string seen before, and
+ * otherwise (length + 1) << 1 followed by the UTF-8 bytes of a new one.
+ * Version 1 streams, which have no dictionary, can still be read.
+ */
+class RecordCodec {
+    protected static final int VERSION = 2;
+    protected static final int VERSION_WITHOUT_DICTIONARY = 1;
+
+    static class Writer {
+        private final OutputStream out_;
+        private final byte[] buffer_ = new byte[10];
+        private final Map<String, Integer> dictionary_ = new HashMap<String, Integer>();
+
+        public Writer(OutputStream out, int count) throws IOException {
+            out_ = out;
+            out_.write(VERSION);
+            writeVarint(count);
+        }
+
+        public void writeEvent(Event event) throws IOException {
+            writeDictionaryString(event.key);
+            writeVarint(zigzag(event.count));
+            writeDouble(event.sum);
+            writeVarint(event.timestamp & 0xffffffffL);
+
+            Segmentation segmentation = event.segmentation;
+            if (segmentation == null) {
+                writeVarint(0);
+            } else {
+                writeVarint(segmentation.size() + 1);
+                for (int i = 0; i < segmentation.size(); i++) {
+                    writeDictionaryString(segmentation.key(i));
+                    writeDictionaryString(segmentation.value(i));
+                }
+            }
+        }
+
+        public void writeVarint(long value) throws IOException {
+            int i = 0;
+            while ((value & ~0x7fL) != 0) {
+                buffer_[i++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer_[i++] = (byte) value;
+            out_.write(buffer_, 0, i);
+        }
+
+        public void writeDouble(double value) throws IOException {
+            long bits = Double.doubleToLongBits(value);
+            for (int i = 0; i < 8; i++) buffer_[i] = (byte) (bits >>> (56 - 8 * i));
+            out_.write(buffer_, 0, 8);
+        }
+
+        public void writeString(String value) throws IOException {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+
+            byte[] bytes = value.getBytes("UTF-8");
+            writeVarint(bytes.length + 1);
+            out_.write(bytes);
+        }
+
+        public void writeDictionaryString(String value) throws IOException {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+
+            Integer number = dictionary_.get(value);
+            if (number != null) {
+                writeVarint(((long) number << 1) | 1);
+                return;
+            }
+
+            dictionary_.put(value, dictionary_.size());
+
+            byte[] bytes = value.getBytes("UTF-8");
+            writeVarint((bytes.length + 1L) << 1);
+            out_.write(bytes);
+        }
+    }
+
+    static class Reader {
+        private final InputStream in_;
+        private final int count_;
+        private final List<String> dictionary_;
+        private int read_;
+
+        public Reader(InputStream in) throws IOException {
+            in_ = in;
+
+            int version = in_.read();
+            if (version != VERSION && version != VERSION_WITHOUT_DICTIONARY)
+                throw new IOException("Unsupported record format version " + version);
+
+            dictionary_ = version == VERSION ? new ArrayList<String>() : null;
+
+            count_ = (int) readVarint();
+        }
+
+        public int count() {
+            return count_;
+        }
+
+        public boolean hasNext() {
+            return read_ < count_;
+        }
+
+        public Event readEvent() throws IOException {
+            Event event = new Event();
+            event.key = readEventString();
+            event.count = (int) unzigzag(readVarint());
+            event.sum = readDouble();
+            event.timestamp = (int) readVarint();
+
+            long size = readVarint();
+            if (size > 0) {
+                Map<String, String> segmentation = new HashMap<String, String>();
+                for (long i = 1; i < size; i++) segmentation.put(readEventString(), readEventString());
+                event.segmentation = Segmentation.of(segmentation);
+            }
+
+            read_++;
+            return event;
+        }
+
+        public long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        public double readDouble() throws IOException {
+            long bits = 0;
+            for (int i = 0; i < 8; i++) bits = (bits << 8) | readByte();
+            return Double.longBitsToDouble(bits);
+        }
+
+        public String readString() throws IOException {
+            long length = readVarint();
+            if (length == 0) return null;
+
+            return readUtf8((int) (length - 1));
+        }
+
+        public String readDictionaryString() throws IOException {
+            long value = readVarint();
+            if (value == 0) return null;
+
+            if ((value & 1) != 0) {
+                long number = value >>> 1;
+                if (number >= dictionary_.size())
+                    throw new IOException("Unknown dictionary string " + number);
+                return dictionary_.get((int) number);
+            }
+
+            String string = readUtf8((int) ((value >>> 1) - 1));
+            dictionary_.add(string);
+            return string;
+        }
+
+        private String readEventString() throws IOException {
+            return dictionary_ != null ? readDictionaryString() : readString();
+        }
+
+        private String readUtf8(int length) throws IOException {
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < bytes.length) {
+                int n = in_.read(bytes, offset, bytes.length - offset);
+                if (n < 0) throw new EOFException();
+                offset += n;
+            }
+
+            try {
+                return new String(bytes, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IOException(e.toString());
+            }
+        }
+
+        private int readByte() throws IOException {
+            int b = in_.read();
+            if (b < 0) throw new EOFException();
+            return b;
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
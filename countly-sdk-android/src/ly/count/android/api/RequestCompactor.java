@@ -0,0 +1,241 @@
+package ly.count.android.api;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import android.util.Log;
+
+/**
+ * Shrinks a backlog of queued requests without changing what the server ends
+ * up counting.
+ *
+ * Between two requests that frame a session (begin_session, end_session or
+ * anything not recognised), all session_duration updates are summed into one
+ * update and all event uploads are re-aggregated by key, segmentation and hour
+ * into one upload, each kept at the position of the first request it replaces.
+ * Events are only merged within the hour they were recorded in, so the server
+ * still counts them in that hour.
+ * Requests are only merged when they carry the same app key and device ID,
+ * and event uploads stop merging once the merged payload could exceed
+ * MAX_EVENTS_LENGTH, so compacted requests still fit in a GET.
+ */
+class RequestCompactor {
+    protected static final int MAX_EVENTS_LENGTH = 8 * 1024;
+
+    private final List<String> result_ = new ArrayList<String>();
+
+    private Map<String, String> update_;
+    private int updateIndex_;
+    private int updateCount_;
+    private long duration_;
+
+    private Map<String, String> events_;
+    private int eventsIndex_;
+    private int eventsCount_;
+    private int eventsLength_;
+    private Map<AggregateKey, Event> aggregated_;
+
+    /**
+     * Returns the compacted form of requests, oldest first. The result is the
+     * same list of strings when nothing could be merged.
+     */
+    public static List<String> compact(List<String> requests) {
+        RequestCompactor compactor = new RequestCompactor();
+        for (String request : requests) compactor.add(request);
+        compactor.flushUpdate();
+        compactor.flushEvents();
+        return compactor.result_;
+    }
+
+    private void add(String request) {
+        Map<String, String> params = parse(request);
+
+        if (params.containsKey("begin_session") || params.containsKey("end_session")) {
+            barrier(request);
+        } else if (params.containsKey("session_duration")) {
+            addUpdate(request, params);
+        } else if (params.containsKey("events")) {
+            addEvents(request, params);
+        } else {
+            barrier(request);
+        }
+    }
+
+    private void barrier(String request) {
+        flushUpdate();
+        flushEvents();
+        result_.add(request);
+    }
+
+    private void addUpdate(String request, Map<String, String> params) {
+        long duration;
+        try {
+            duration = Long.parseLong(params.get("session_duration"));
+        } catch (NumberFormatException e) {
+            barrier(request);
+            return;
+        }
+
+        if (update_ != null && !sameSender(update_, params))
+            flushUpdate();
+
+        if (update_ == null) {
+            update_ = params;
+            updateIndex_ = result_.size();
+            updateCount_ = 0;
+            duration_ = 0;
+            result_.add(request);
+        }
+
+        updateCount_++;
+        duration_ += duration;
+        update_.put("timestamp", params.get("timestamp"));
+    }
+
+    private void addEvents(String request, Map<String, String> params) {
+        List<Event> events = decodeEvents(params.get("events"));
+        if (events == null) {
+            barrier(request);
+            return;
+        }
+
+        int length = params.get("events").length();
+        if (events_ != null && (!sameSender(events_, params) || eventsLength_ + length > MAX_EVENTS_LENGTH))
+            flushEvents();
+
+        if (events_ == null) {
+            events_ = params;
+            eventsIndex_ = result_.size();
+            eventsCount_ = 0;
+            eventsLength_ = 0;
+            aggregated_ = new LinkedHashMap<AggregateKey, Event>();
+            result_.add(request);
+        }
+
+        eventsCount_++;
+        eventsLength_ += length;
+        events_.put("timestamp", params.get("timestamp"));
+
+        for (Event e : events) {
+            AggregateKey key = new AggregateKey(new EventQueue.EventKey(e.key, e.segmentation), e.timestamp / 3600);
+            Event existing = aggregated_.get(key);
+            if (existing == null) {
+                aggregated_.put(key, e);
+            } else {
+                existing.count += e.count;
+                existing.sum += e.sum;
+                existing.timestamp = (int) (((long) existing.timestamp + e.timestamp) / 2);
+            }
+        }
+    }
+
+    private void flushUpdate() {
+        if (update_ != null && updateCount_ > 1) {
+            update_.put("session_duration", Long.toString(duration_));
+            result_.set(updateIndex_, join(update_));
+        }
+
+        update_ = null;
+    }
+
+    private void flushEvents() {
+        if (events_ != null && eventsCount_ > 1) {
+            JSONArray array = new JSONArray();
+            for (Event e : aggregated_.values()) array.put(CountlyStore.eventToJSON(e));
+
+            try {
+                events_.put("events", URLEncoder.encode(array.toString(), "UTF-8"));
+                result_.set(eventsIndex_, join(events_));
+            } catch (UnsupportedEncodingException e) {
+                Log.e("Countly", "Cannot encode compacted events", e);
+            }
+        }
+
+        events_ = null;
+        aggregated_ = null;
+    }
+
+    private static boolean sameSender(Map<String, String> p1, Map<String, String> p2) {
+        return equal(p1.get("app_key"), p2.get("app_key")) && equal(p1.get("device_id"), p2.get("device_id"));
+    }
+
+    private static boolean equal(String s1, String s2) {
+        return s1 == null ? s2 == null : s1.equals(s2);
+    }
+
+    private static List<Event> decodeEvents(String encoded) {
+        try {
+            JSONArray array = new JSONArray(URLDecoder.decode(encoded, "UTF-8"));
+            List<Event> events = new ArrayList<Event>(array.length());
+            for (int i = 0; i < array.length(); i++) events.add(CountlyStore.jsonToEvent(array.getJSONObject(i)));
+            return events;
+        } catch (JSONException e) {
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Splits a query string into its still-encoded parameters, in order.
+     */
+    private static Map<String, String> parse(String request) {
+        Map<String, String> params = new LinkedHashMap<String, String>();
+
+        for (String pair : request.split("&")) {
+            int index = pair.indexOf('=');
+            if (index <= 0) continue;
+            params.put(pair.substring(0, index), pair.substring(index + 1));
+        }
+
+        return params;
+    }
+
+    private static String join(Map<String, String> params) {
+        StringBuilder builder = new StringBuilder();
+
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            if (builder.length() > 0) builder.append('&');
+            builder.append(param.getKey()).append('=').append(param.getValue());
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * An event aggregate within one hour of epoch time.
+     */
+    private static class AggregateKey {
+        final EventQueue.EventKey event;
+        final int hour;
+
+        AggregateKey(EventQueue.EventKey event, int hour) {
+            this.event = event;
+            this.hour = hour;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * event.hashCode() + hour;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof AggregateKey)) return false;
+
+            AggregateKey k = (AggregateKey) o;
+
+            return hour == k.hour && event.equals(k.event);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package ly.count.android.api;
+
+import java.io.UnsupportedEncodingException;
+
+import org.OpenUDID.OpenUDID_manager;
+
+/**
+ * Writes the query strings queued by ConnectionQueue as UTF-8 straight into a
+ * reusable buffer.
+ *
+ * Every request starts with "app_key=...&device_id=...", which is encoded
+ * once per app key and device ID. Until OpenUDID is ready the device ID is
+ * written as the REPLACE_UDID placeholder; since it always sits right after the
+ * app key, {@link #resolve(String)} splices the real ID in by position rather
+ * than searching the request for it.
+ *
+ * The encode methods and the buffer belong to the thread that queues requests;
+ * resolve may be called from any thread.
+ */
+class RequestEncoder {
+    protected static final String UNRESOLVED_UDID = "REPLACE_UDID";
+    private static final String SDK_VERSION = "2.0";
+
+    private static final byte[] TIMESTAMP = ascii("&timestamp=");
+    private static final byte[] BEGIN_SESSION = ascii("&sdk_version=" + SDK_VERSION + "&begin_session=1&metrics=");
+    private static final byte[] SESSION_DURATION = ascii("&session_duration=");
+    private static final byte[] END_SESSION = ascii("&end_session=1&session_duration=");
+    private static final byte[] EVENTS = ascii("&events=");
+
+    private final String prefix_;
+    private final String unresolvedPrefix_;
+    private final byte[] unresolvedPrefixBytes_;
+    private volatile String udid_;
+    private byte[] resolvedPrefixBytes_;
+
+    private byte[] buffer_ = new byte[256];
+    private int length_;
+
+    public RequestEncoder(String appKey) {
+        prefix_ = "app_key=" + appKey + "&device_id=";
+        unresolvedPrefix_ = prefix_ + UNRESOLVED_UDID;
+        unresolvedPrefixBytes_ = utf8(unresolvedPrefix_);
+    }
+
+    public byte[] buffer() {
+        return buffer_;
+    }
+
+    public int length() {
+        return length_;
+    }
+
+    public void beginSession(long timestamp, String metrics) {
+        start(timestamp);
+        write(BEGIN_SESSION);
+        write(metrics);
+    }
+
+    public void updateSession(long timestamp, int duration) {
+        start(timestamp);
+        write(SESSION_DURATION);
+        write(duration > 0 ? duration : Countly.SESSION_DURATION_WHEN_TIME_ADJUSTED);
+    }
+
+    public void endSession(long timestamp, int duration) {
+        start(timestamp);
+        write(END_SESSION);
+        write(duration > 0 ? duration : Countly.SESSION_DURATION_WHEN_TIME_ADJUSTED);
+    }
+
+    public void recordEvents(long timestamp, String events) {
+        start(timestamp);
+        write(EVENTS);
+        write(events);
+    }
+
+    /**
+     * Returns request with the placeholder device ID replaced, request itself
+     * if it has a device ID, or null while the device ID is still unknown.
+     */
+    public String resolve(String request) {
+        if (request.startsWith(unresolvedPrefix_)) {
+            String udid = udid();
+            if (udid == null) return null;
+
+            return prefix_ + udid + request.substring(unresolvedPrefix_.length());
+        }
+
+        // Requests queued under another app key or by an older SDK version.
+        if (!request.startsWith(prefix_) && request.indexOf(UNRESOLVED_UDID) != -1) {
+            String udid = udid();
+            if (udid == null) return null;
+
+            return request.replace(UNRESOLVED_UDID, udid);
+        }
+
+        return request;
+    }
+
+    private String udid() {
+        String udid = udid_;
+        if (udid == null && OpenUDID_manager.isInitialized())
+            udid = udid_ = OpenUDID_manager.getOpenUDID();
+
+        return udid;
+    }
+
+    private void start(long timestamp) {
+        length_ = 0;
+
+        if (resolvedPrefixBytes_ == null) {
+            String udid = udid();
+            if (udid != null) resolvedPrefixBytes_ = utf8(prefix_ + udid);
+        }
+
+        write(resolvedPrefixBytes_ != null ? resolvedPrefixBytes_ : unresolvedPrefixBytes_);
+        write(TIMESTAMP);
+        write(timestamp);
+    }
+
+    private void write(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer_, length_, bytes.length);
+        length_ += bytes.length;
+    }
+
+    private void write(long value) {
+        ensureCapacity(20);
+
+        if (value < 0) {
+            buffer_[length_++] = '-';
+            value = -value;
+        }
+
+        int start = length_;
+        do {
+            buffer_[length_++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+
+        for (int i = start, j = length_ - 1; i < j; i++, j--) {
+            byte b = buffer_[i];
+            buffer_[i] = buffer_[j];
+            buffer_[j] = b;
+        }
+    }
+
+    /**
+     * Writes value as UTF-8. Queued values are already URL-encoded, so this is
+     * almost always one byte per char.
+     */
+    private void write(String value) {
+        int count = value.length();
+        ensureCapacity(count * 3);
+
+        for (int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+
+            if (c < 0x80) {
+                buffer_[length_++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer_[length_++] = (byte) (0xc0 | (c >> 6));
+                buffer_[length_++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer_[length_++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer_[length_++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer_[length_++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer_[length_++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else {
+                buffer_[length_++] = (byte) (0xe0 | (c >> 12));
+                buffer_[length_++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer_[length_++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length_ + extra <= buffer_.length) return;
+
+        byte[] buffer = new byte[Math.max(length_ + extra, buffer_.length * 2)];
+        System.arraycopy(buffer_, 0, buffer, 0, length_);
+        buffer_ = buffer;
+    }
+
+    private static byte[] ascii(String value) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) value.charAt(i);
+        return bytes;
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return value.getBytes();
+        }
+    }
+}
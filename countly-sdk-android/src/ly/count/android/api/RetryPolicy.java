@@ -0,0 +1,125 @@
+package ly.count.android.api;
+
+import java.util.Random;
+
+/**
+ * Decides when the sender may contact the server after failed uploads.
+ *
+ * Each consecutive failure doubles the wait, up to a cap, and the actual wait is
+ * picked at random between half and all of it so devices that failed together
+ * don't retry together. After enough consecutive failures the breaker opens:
+ * nothing is sent until the open interval has passed, then a single probe is
+ * let through, which either closes the breaker or opens it again. The failure
+ * count and next attempt time are kept in the store, so a restarted process
+ * keeps backing off.
+ */
+class RetryPolicy {
+    protected static final long DEFAULT_BASE_DELAY = 1000;
+    protected static final long DEFAULT_MAX_DELAY = 5 * 60 * 1000;
+    protected static final int DEFAULT_FAILURES_TO_OPEN = 5;
+    protected static final long DEFAULT_OPEN_INTERVAL = 60 * 1000;
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final Random random_ = new Random();
+    private CountlyStore store_;
+    private long baseDelay_ = DEFAULT_BASE_DELAY;
+    private long maxDelay_ = DEFAULT_MAX_DELAY;
+    private int failuresToOpen_ = DEFAULT_FAILURES_TO_OPEN;
+    private long openInterval_ = DEFAULT_OPEN_INTERVAL;
+
+    private State state_ = State.CLOSED;
+    private int failures_ = 0;
+    private long nextAttempt_ = 0;
+
+    public synchronized void setStore(CountlyStore store) {
+        store_ = store;
+        failures_ = store_.retryFailures();
+        nextAttempt_ = store_.retryNextAttempt();
+        state_ = failures_ >= failuresToOpen_ ? State.OPEN : State.CLOSED;
+    }
+
+    public synchronized void setBackoff(long baseDelay, long maxDelay, int failuresToOpen, long openInterval) {
+        baseDelay_ = baseDelay;
+        maxDelay_ = maxDelay;
+        failuresToOpen_ = failuresToOpen;
+        openInterval_ = openInterval;
+    }
+
+    public synchronized State state() {
+        return state_;
+    }
+
+    /**
+     * Milliseconds to wait before the next attempt is allowed, 0 if now. Never
+     * more than the longest wait onFailure can set, so a next attempt time
+     * left behind by a clock that moved backwards, or a corrupt one, can't
+     * stall the sender.
+     */
+    public synchronized long delay() {
+        long now = System.currentTimeMillis();
+        long limit = Math.max(maxDelay_, openInterval_);
+
+        if (nextAttempt_ - now > limit) {
+            nextAttempt_ = now + limit;
+            persist();
+        }
+
+        return Math.max(0, nextAttempt_ - now);
+    }
+
+    /**
+     * Called by the sender before contacting the server. Returns false while
+     * backing off or while the breaker is open and its probe is in flight.
+     */
+    public synchronized boolean tryAcquire() {
+        if (delay() > 0) return false;
+
+        switch (state_) {
+            case OPEN:
+                state_ = State.HALF_OPEN;
+                return true;
+            case HALF_OPEN:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Called by the sender when it stops. A probe that never reached the
+     * server, for example because the queue was empty, is given back.
+     */
+    public synchronized void release() {
+        if (state_ == State.HALF_OPEN) state_ = State.OPEN;
+    }
+
+    public synchronized void onSuccess() {
+        boolean changed = failures_ != 0 || nextAttempt_ != 0;
+
+        state_ = State.CLOSED;
+        failures_ = 0;
+        nextAttempt_ = 0;
+
+        if (changed) persist();
+    }
+
+    public synchronized void onFailure() {
+        failures_++;
+
+        long delay = Math.min(maxDelay_, baseDelay_ << Math.min(failures_ - 1, 30));
+        delay = delay / 2 + (long) (random_.nextDouble() * (delay / 2));
+
+        if (state_ == State.HALF_OPEN || failures_ >= failuresToOpen_) {
+            state_ = State.OPEN;
+            delay = Math.max(delay, openInterval_);
+        }
+
+        nextAttempt_ = System.currentTimeMillis() + delay;
+        persist();
+    }
+
+    private void persist() {
+        if (store_ != null) store_.setRetryState(failures_, nextAttempt_);
+    }
+}
@@ -0,0 +1,137 @@
+package ly.count.android.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable segmentation of an event: keys sorted, values in matching
+ * positions, and the hash computed once.
+ *
+ * Keys and values are interned in a process-wide pool, so the few distinct
+ * strings most apps use are held once however many events carry them, and
+ * comparing two segmentations usually comes down to reference checks. The pool
+ * stops growing at MAX_INTERNED strings so that high-cardinality values, such
+ * as user IDs, can't grow it without bound; later strings are simply kept as
+ * they are.
+ */
+final class Segmentation {
+    protected static final int MAX_INTERNED = 4096;
+
+    private static final ConcurrentHashMap<String, String> pool_ = new ConcurrentHashMap<String, String>();
+
+    private static final Comparator<Map.Entry<String, String>> BY_KEY = new Comparator<Map.Entry<String, String>>() {
+        @Override
+        public int compare(Map.Entry<String, String> a, Map.Entry<String, String> b) {
+            return a.getKey().compareTo(b.getKey());
+        }
+    };
+
+    private final String[] keys_;
+    private final String[] values_;
+    private final int hash_;
+
+    private Segmentation(String[] keys, String[] values) {
+        keys_ = keys;
+        values_ = values;
+
+        int hash = 0;
+        for (int i = 0; i < keys.length; i++)
+            hash = 31 * hash + keys[i].hashCode() * 31 + (values[i] == null ? 0 : values[i].hashCode());
+        hash_ = hash;
+    }
+
+    /**
+     * Segmentation holding a copy of map, or null if map is null. Entries with
+     * a null key are left out.
+     */
+    static Segmentation of(Map<String, String> map) {
+        if (map == null)
+            return null;
+
+        List<Map.Entry<String, String>> entries = new ArrayList<Map.Entry<String, String>>(map.size());
+        for (Map.Entry<String, String> entry : map.entrySet())
+            if (entry.getKey() != null) entries.add(entry);
+        Collections.sort(entries, BY_KEY);
+
+        int size = entries.size();
+        String[] keys = new String[size];
+        String[] values = new String[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = intern(entries.get(i).getKey());
+            values[i] = intern(entries.get(i).getValue());
+        }
+
+        return new Segmentation(keys, values);
+    }
+
+    static String intern(String s) {
+        if (s == null)
+            return null;
+
+        String interned = pool_.get(s);
+        if (interned != null)
+            return interned;
+
+        if (pool_.size() >= MAX_INTERNED)
+            return s;
+
+        interned = pool_.putIfAbsent(s, s);
+        return interned == null ? s : interned;
+    }
+
+    public int size() {
+        return keys_.length;
+    }
+
+    public String key(int i) {
+        return keys_[i];
+    }
+
+    public String value(int i) {
+        return values_[i];
+    }
+
+    /**
+     * A new mutable map with the same entries, in key order.
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        for (int i = 0; i < keys_.length; i++) map.put(keys_[i], values_[i]);
+        return map;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash_;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) return true;
+        if (!(o instanceof Segmentation)) return false;
+
+        Segmentation s = (Segmentation) o;
+        if (hash_ != s.hash_ || keys_.length != s.keys_.length) return false;
+
+        for (int i = 0; i < keys_.length; i++) {
+            if (!same(keys_[i], s.keys_[i]) || !same(values_[i], s.values_[i]))
+                return false;
+        }
+
+        return true;
+    }
+
+    private static boolean same(String a, String b) {
+        return a == b || (a != null && a.equals(b));
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+}
@@ -0,0 +1,87 @@
+package ly.count.android.api;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import android.util.Log;
+
+/**
+ * The one worker thread that sends for every Countly instance.
+ *
+ * Queues ask for the worker with {@link #signal(ConnectionQueue)} and are
+ * served in the order they asked, each getting a bounded turn before the next
+ * one, so an instance with a large backlog can't hold up the others. A queue
+ * that is backing off after a failure keeps its place but isn't served until
+ * its retry delay has passed; the worker sleeps until the first such delay
+ * ends or a new signal arrives.
+ */
+class Sender {
+    private static final Sender sharedInstance_ = new Sender();
+
+    private final Set<ConnectionQueue> signaled_ = new LinkedHashSet<ConnectionQueue>();
+    private Thread thread_ = null;
+
+    static Sender sharedInstance() {
+        return sharedInstance_;
+    }
+
+    /**
+     * Asks for a turn of the worker, starting it on first use. A queue that
+     * already asked keeps its place.
+     */
+    public synchronized void signal(ConnectionQueue queue) {
+        if (thread_ == null) {
+            thread_ = new Thread("Countly-Sender") {
+                @Override
+                public void run() {
+                    loop();
+                }
+            };
+            thread_.setDaemon(true);
+            thread_.start();
+        }
+
+        signaled_.add(queue);
+        notifyAll();
+    }
+
+    private void loop() {
+        while (true) {
+            ConnectionQueue queue;
+            try {
+                queue = awaitNext();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                queue.drain();
+            } catch (RuntimeException e) {
+                Log.e("Countly", "Error while sending", e);
+            }
+        }
+    }
+
+    /**
+     * Blocks until a signaled queue may send and takes it off the list.
+     */
+    private synchronized ConnectionQueue awaitNext() throws InterruptedException {
+        while (true) {
+            long wait = Long.MAX_VALUE;
+
+            for (Iterator<ConnectionQueue> it = signaled_.iterator(); it.hasNext(); ) {
+                ConnectionQueue queue = it.next();
+                long delay = queue.retryDelay();
+                if (delay <= 0) {
+                    it.remove();
+                    return queue;
+                }
+                wait = Math.min(wait, delay);
+            }
+
+            if (wait == Long.MAX_VALUE) wait();
+            else wait(wait);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package ly.count.android.api;
+
+import java.io.IOException;
+
+/**
+ * Sends requests to the Countly server. The SDK uses
+ * {@link PooledHttpTransport} unless another implementation is set with
+ * Countly.setTransport; {@link UrlConnectionTransport} is the alternative
+ * built on HttpURLConnection.
+ *
+ * Implementations are called from the sender thread only, read and discard the
+ * response body, and report failures to connect or read as IOExceptions.
+ */
+public interface Transport {
+    void setTimeouts(int connectTimeout, int readTimeout);
+
+    /**
+     * Sends a GET and returns the response status code.
+     */
+    int get(String url) throws IOException;
+
+    /**
+     * Sends a POST with the given body and returns the response status code.
+     * contentEncoding may be null for an uncompressed body.
+     */
+    int post(String url, String contentType, String contentEncoding, byte[] body) throws IOException;
+}
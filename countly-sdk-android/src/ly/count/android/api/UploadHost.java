@@ -0,0 +1,27 @@
+package ly.count.android.api;
+
+/**
+ * Platform services the upload scheduler depends on: connectivity and a
+ * wake-up that outlives the process. {@link AndroidUploadHost} is backed by
+ * ConnectivityManager and AlarmManager; the tests stand in for it on a plain
+ * JVM.
+ */
+interface UploadHost {
+    boolean isConnected();
+
+    boolean isMetered();
+
+    /**
+     * Sets the listener run whenever connectivity may have changed or a
+     * wake-up is due, replacing any previous one.
+     */
+    void setListener(Runnable listener);
+
+    /**
+     * Arranges for the scheduler to be woken at or after time, in milliseconds
+     * since the epoch, replacing any wake-up scheduled before.
+     */
+    void scheduleWakeUp(long time);
+
+    void cancelWakeUp();
+}
@@ -0,0 +1,34 @@
+package ly.count.android.api;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Receives the upload wake-ups scheduled by {@link AndroidUploadHost}. Must be
+ * declared in the app's manifest for deferred uploads to survive the process.
+ *
+ * The broadcast is kept open until the sender has had its turn, so a process
+ * started just for the wake-up isn't killed in the middle of the upload.
+ */
+public class UploadReceiver extends BroadcastReceiver {
+    static final String ACTION_UPLOAD = "ly.count.android.api.UPLOAD";
+    static final String EXTRA_INSTANCE = "ly.count.android.api.INSTANCE";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String instance = intent.getStringExtra(EXTRA_INSTANCE);
+
+        // Alarms set by SDK versions without named instances carry no name.
+        if (instance == null)
+            instance = Countly.DEFAULT_INSTANCE;
+
+        final PendingResult result = goAsync();
+        Countly.instance(instance).onUploadWakeUp(context, new Runnable() {
+            @Override
+            public void run() {
+                result.finish();
+            }
+        });
+    }
+}
@@ -0,0 +1,136 @@
+package ly.count.android.api;
+
+/**
+ * Decides when the queued requests are handed to the sender.
+ *
+ * The backlog is released once the network meets the constraints (connected,
+ * and unmetered if required) and either minBatchSize requests are waiting or
+ * the oldest has waited maxDelay milliseconds, so requests trickling in share
+ * one radio wake-up. While the backlog is held back, or the sender is backing
+ * off after a failure, the time it is due is kept in the store and a wake-up is
+ * scheduled with the {@link UploadHost}, so a backlog left by a dead process is
+ * still sent without waiting for the app to be launched again. The defaults,
+ * a batch of 1 and no delay, send as soon as the network allows.
+ */
+class UploadScheduler {
+    protected static final int DEFAULT_MIN_BATCH_SIZE = 1;
+    protected static final long DEFAULT_MAX_DELAY = 0;
+    protected static final long OFFLINE_RECHECK_INTERVAL = 15 * 60 * 1000;
+
+    private final UploadHost host_;
+    private final CountlyStore store_;
+    private final Runnable upload_;
+    private boolean unmeteredOnly_ = false;
+    private int minBatchSize_ = DEFAULT_MIN_BATCH_SIZE;
+    private long maxDelay_ = DEFAULT_MAX_DELAY;
+    private long due_;
+    private long retry_;
+    private long scheduled_;
+
+    /**
+     * upload is run, under the scheduler's lock, whenever the backlog should
+     * be sent.
+     */
+    public UploadScheduler(UploadHost host, CountlyStore store, Runnable upload) {
+        host_ = host;
+        store_ = store;
+        upload_ = upload;
+
+        host_.setListener(new Runnable() {
+            @Override
+            public void run() {
+                evaluate();
+            }
+        });
+
+        // Alarms don't survive a reboot, so the job left by the previous
+        // process is always scheduled again.
+        long due = store_.uploadDue();
+        if (due != 0) {
+            // It may have been a retry, so it is kept like one.
+            due_ = due;
+            retry_ = due;
+            scheduled_ = due;
+            host_.scheduleWakeUp(due);
+        }
+    }
+
+    public synchronized void setConstraints(boolean unmeteredOnly, int minBatchSize, long maxDelay) {
+        unmeteredOnly_ = unmeteredOnly;
+        minBatchSize_ = minBatchSize;
+        maxDelay_ = maxDelay;
+    }
+
+    public synchronized boolean isNetworkAllowed() {
+        return host_.isConnected() && !(unmeteredOnly_ && host_.isMetered());
+    }
+
+    /**
+     * Called whenever requests are queued, connectivity changes or a wake-up
+     * is due. Releases the backlog if it is ready, otherwise makes sure a
+     * wake-up is pending.
+     */
+    public synchronized void evaluate() {
+        if (store_.isEmptyConnections()) {
+            onDrained();
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (due_ == 0) due_ = now + maxDelay_;
+
+        // While the sender backs off, its retry wake-up stays in place, or
+        // a process killed meanwhile would never retry.
+        long retry = retry_ > now ? retry_ : 0;
+
+        boolean ready = now >= due_ || store_.connectionCount() >= minBatchSize_;
+        if (ready && isNetworkAllowed()) {
+            schedule(retry);
+            upload_.run();
+            return;
+        }
+
+        if (!ready) {
+            schedule(Math.max(due_, retry));
+            return;
+        }
+
+        // Held back by the network only. A wake-up still ahead will look
+        // again, so requests queued while offline don't each push it back.
+        if (scheduled_ <= now)
+            schedule(Math.max(now + OFFLINE_RECHECK_INTERVAL, retry));
+    }
+
+    /**
+     * Called by the sender after a failed attempt, with the time the retry
+     * policy allows the next one, so the retry outlives the process.
+     */
+    public synchronized void onUploadFailed(long nextAttempt) {
+        retry_ = Math.max(nextAttempt, System.currentTimeMillis());
+        schedule(retry_);
+    }
+
+    /**
+     * Called by the sender once the backlog is empty.
+     */
+    public synchronized void onDrained() {
+        due_ = 0;
+        retry_ = 0;
+        schedule(0);
+    }
+
+    /**
+     * Persists and schedules a wake-up at time, or clears it when time is 0.
+     * Does nothing when that wake-up is already in place, so releasing a
+     * backlog that was never held back costs nothing.
+     */
+    private void schedule(long time) {
+        if (time == scheduled_) return;
+
+        scheduled_ = time;
+        store_.setUploadDue(time);
+
+        if (time == 0) host_.cancelWakeUp();
+        else host_.scheduleWakeUp(time);
+    }
+}
@@ -0,0 +1,85 @@
+package ly.count.android.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * {@link Transport} built on HttpURLConnection, which keeps connections alive
+ * and pools them itself on Android 2.3 and later. Response bodies, including
+ * error bodies, are drained through a reusable buffer so the connection can be
+ * reused.
+ */
+public class UrlConnectionTransport implements Transport {
+    private volatile int connectTimeout_ = PooledHttpTransport.DEFAULT_CONNECT_TIMEOUT;
+    private volatile int readTimeout_ = PooledHttpTransport.DEFAULT_READ_TIMEOUT;
+    private final byte[] buffer_ = new byte[4096];
+
+    @Override
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        connectTimeout_ = connectTimeout;
+        readTimeout_ = readTimeout;
+    }
+
+    @Override
+    public int get(String url) throws IOException {
+        HttpURLConnection connection = open(url);
+        connection.setRequestMethod("GET");
+        return execute(connection);
+    }
+
+    @Override
+    public int post(String url, String contentType, String contentEncoding, byte[] body) throws IOException {
+        HttpURLConnection connection = open(url);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        connection.setRequestProperty("Content-Type", contentType);
+        if (contentEncoding != null) connection.setRequestProperty("Content-Encoding", contentEncoding);
+
+        try {
+            OutputStream output = connection.getOutputStream();
+            try {
+                output.write(body);
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+
+        return execute(connection);
+    }
+
+    private HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(connectTimeout_);
+        connection.setReadTimeout(readTimeout_);
+        connection.setUseCaches(false);
+        return connection;
+    }
+
+    private synchronized int execute(HttpURLConnection connection) throws IOException {
+        try {
+            int status = connection.getResponseCode();
+
+            InputStream input = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (input != null) {
+                try {
+                    while (input.read(buffer_) != -1)
+                        ;
+                } finally {
+                    input.close();
+                }
+            }
+
+            return status;
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package org.OpenUDID;
 
 import java.math.BigInteger;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
@@ -17,36 +18,82 @@ import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
 import android.provider.Settings.Secure;
 import android.util.Log;
 
 
-public class OpenUDID_manager implements ServiceConnection{
+public class OpenUDID_manager {
 	public final static String PREF_KEY = "openudid";
 	public final static String PREFS_NAME = "openudid_prefs";
 	public final static String TAG = "OpenUDID";
+	public final static long DEFAULT_TIMEOUT = 5000; //How long to wait for the services, in milliseconds
 	
 	private final static boolean LOG = true; //Display or not debug message
 
+	/**
+	 * Called once the OpenUDID is known, on the main thread if services had
+	 * to be asked, otherwise on the thread calling sync
+	 */
+	public interface OnReadyListener {
+		public void onOpenUDIDReady(String openUDID);
+	}
+
 	private final Context mContext; //Application context
 	private List<ResolveInfo> mMatchingIntents; //List of available OpenUDID Intents
 	private Map<String, Integer> mReceivedOpenUDIDs; //Map of OpenUDIDs found so far
+	private final List<Binding> mBindings; //Services that haven't answered yet
+	private boolean mFinished;
+	private OnReadyListener mListener;
+	private Handler mHandler;
 
 	private final SharedPreferences mPreferences; //Preferences to store the OpenUDID
 	private final Random mRandom;
 	
+	private final Runnable mTimeout = new Runnable() {
+		public void run() {
+			if (LOG) Log.d(TAG, "Timed out waiting for OpenUDID services");
+			finish();
+		}
+	};
+	
 	private OpenUDID_manager(Context context) {
 		mPreferences =  context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
 		mContext = context;
 		mRandom = new Random();
 		mReceivedOpenUDIDs = new HashMap<String, Integer>();
+		mBindings = new ArrayList<Binding>();
 	}
 	
-	@Override
-  	public void onServiceConnected(ComponentName className, IBinder service) {
-		//Get the OpenUDID from the remote service
+	/*
+	 * Connection to one OpenUDID service
+	 */
+	private class Binding implements ServiceConnection {
+		@Override
+		public void onServiceConnected(ComponentName className, IBinder service) {
+			final boolean done;
+			synchronized (OpenUDID_manager.this) {
+				if (!mBindings.remove(this)) return; //Gave up on it already
+				
+				readOpenUDID(service);
+				mContext.unbindService(this);
+				done = mBindings.isEmpty();
+			}
+			
+			if (done) finish();
+		}
+		
+		@Override
+		public void onServiceDisconnected(ComponentName className) {}
+	}
+	
+	/*
+	 * Get the OpenUDID from the remote service
+	 */
+	private void readOpenUDID(IBinder service) {
 		try {
 			//Send a random number to the service
 			android.os.Parcel data = android.os.Parcel.obtain(); 
@@ -64,14 +111,8 @@ public class OpenUDID_manager implements ServiceConnection{
 						
 				}
 			}
-		} catch (RemoteException e) {if (LOG) Log.e(TAG, "RemoteException: " + e.getMessage());}		    	    			
-		mContext.unbindService(this);
-		
-		startService(); //Try the next one
-  	}
-	
-	@Override
-	public void onServiceDisconnected(ComponentName className) {}
+		} catch (RemoteException e) {if (LOG) Log.e(TAG, "RemoteException: " + e.getMessage());}
+	}
 	
 	private void storeOpenUDID() {
     	final Editor e = mPreferences.edit();
@@ -95,33 +136,63 @@ public class OpenUDID_manager implements ServiceConnection{
 	
 	
 	/*
-	 * Start the oldest service
+	 * Bind to all the services at once, giving up on those that haven't
+	 * answered when the timeout expires
 	 */
-	private void startService() {
-		if (mMatchingIntents.size() > 0) { //There are some Intents untested
-			if (LOG) Log.d(TAG, "Trying service " + mMatchingIntents.get(0).loadLabel(mContext.getPackageManager()));
+	private void startServices(long timeout) {
+		final boolean done;
+		synchronized (this) {
+			for (ResolveInfo info : mMatchingIntents) {
+				if (LOG) Log.d(TAG, "Trying service " + info.loadLabel(mContext.getPackageManager()));
+				
+				final ServiceInfo servInfo = info.serviceInfo;
+				final Intent i = new Intent();
+				i.setComponent(new ComponentName(servInfo.applicationInfo.packageName, servInfo.name));
+				
+				final Binding binding = new Binding();
+				mBindings.add(binding);
+				try	{	// try added by Lionscribe
+					if (!mContext.bindService(i, binding, Context.BIND_AUTO_CREATE))
+						mBindings.remove(binding);
+				}
+				catch (SecurityException e) {
+					mBindings.remove(binding);	// ignore this one
+				}
+			}
+			
+			done = mBindings.isEmpty();
+			if (!done) {
+				mHandler = new Handler(Looper.getMainLooper());
+				mHandler.postDelayed(mTimeout, timeout);
+			}
+		}
 		
-			final ServiceInfo servInfo = mMatchingIntents.get(0).serviceInfo;
-            final Intent i = new Intent();
-            i.setComponent(new ComponentName(servInfo.applicationInfo.packageName, servInfo.name));
-            mMatchingIntents.remove(0);
-            try	{	// try added by Lionscribe
-            	mContext.bindService(i, this,  Context.BIND_AUTO_CREATE);
-            }
-            catch (SecurityException e) {
-                startService();	// ignore this one, and start next one
-            }
-		} else { //No more service to test
+		if (done) finish();
+	}
+	
+	/*
+	 * Settle on an OpenUDID once all the services answered or the timeout expired
+	 */
+	private void finish() {
+		synchronized (this) {
+			if (mFinished) return;
+			mFinished = true;
+			
+			if (mHandler != null) mHandler.removeCallbacks(mTimeout);
+			for (Binding binding : mBindings) mContext.unbindService(binding);
+			mBindings.clear();
 			
 			getMostFrequentOpenUDID(); //Choose the most frequent
-	
-			if (OpenUDID == null) //No OpenUDID was chosen, generate one			
+			
+			if (OpenUDID == null) //No OpenUDID was chosen, generate one
 				generateOpenUDID();
 			if (LOG) Log.d(TAG, "OpenUDID: " + OpenUDID);
-
+			
 			storeOpenUDID();//Store it locally
 			mInitialized = true;
 		}
+		
+		if (mListener != null) mListener.onOpenUDIDReady(OpenUDID);
 	}
 	
 	private void getMostFrequentOpenUDID() {
@@ -134,8 +205,8 @@ public class OpenUDID_manager implements ServiceConnection{
 	}
 	
 	
-	private static String OpenUDID = null;
-	private static boolean mInitialized = false; 
+	private static volatile String OpenUDID = null;
+	private static volatile boolean mInitialized = false; 
 
 	/**
 	 * The Method to call to get OpenUDID
@@ -159,8 +230,19 @@ public class OpenUDID_manager implements ServiceConnection{
 	 * @param context	you current context
 	 */
 	public static void sync(Context context) {
+		sync(context, DEFAULT_TIMEOUT, null);
+	}
+	
+	/**
+	 * The Method the call at the init of your app
+	 * @param context	you current context
+	 * @param timeout	how long to wait for the other OpenUDID services, in milliseconds
+	 * @param listener	called once the OpenUDID is known, may be null
+	 */
+	public static void sync(Context context, long timeout, OnReadyListener listener) {
 		//Initialise the Manager
 		OpenUDID_manager manager = new OpenUDID_manager(context);
+		manager.mListener = listener;
 		
 		//Try to get the openudid from local preferences
 		OpenUDID = manager.mPreferences.getString(PREF_KEY, null);
@@ -168,15 +250,17 @@ public class OpenUDID_manager implements ServiceConnection{
 		{
 			//Get the list of all OpenUDID services available (including itself)
 			manager.mMatchingIntents = context.getPackageManager().queryIntentServices(new Intent("org.OpenUDID.GETUDID"), 0);
+			if (manager.mMatchingIntents == null)
+				manager.mMatchingIntents = new ArrayList<ResolveInfo>();
 			if (LOG) Log.d(TAG, manager.mMatchingIntents.size() + " services matches OpenUDID");
 			
-			if (manager.mMatchingIntents != null)
-				//Start services one by one
-				manager.startService();
+			//Ask all services at once
+			manager.startServices(timeout);
 		
 		} else {//Got it, you can now call getOpenUDID()
 			if (LOG) Log.d(TAG, "OpenUDID: " + OpenUDID);
 			mInitialized = true;
+			if (listener != null) listener.onOpenUDIDReady(OpenUDID);
 		}
 	}
 	
@@ -0,0 +1,15 @@
+package android.app;
+
+/**
+ * Accepts alarms without ever delivering them.
+ */
+public class AlarmManager {
+    public static final int RTC_WAKEUP = 0;
+    public static final int RTC = 1;
+
+    public void set(int type, long triggerAtMillis, PendingIntent operation) {
+    }
+
+    public void cancel(PendingIntent operation) {
+    }
+}
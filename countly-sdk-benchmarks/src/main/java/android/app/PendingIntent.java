@@ -0,0 +1,12 @@
+package android.app;
+
+import android.content.Context;
+import android.content.Intent;
+
+public class PendingIntent {
+    public static final int FLAG_UPDATE_CURRENT = 1 << 27;
+
+    public static PendingIntent getBroadcast(Context context, int requestCode, Intent intent, int flags) {
+        return new PendingIntent();
+    }
+}
@@ -0,0 +1,6 @@
+package android.content;
+
+public class ComponentName {
+    public ComponentName(String pkg, String cls) {
+    }
+}
@@ -0,0 +1,100 @@
+package android.content;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.app.AlarmManager;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.net.ConnectivityManager;
+import android.telephony.TelephonyManager;
+import android.view.WindowManager;
+
+/**
+ * Plain JVM stand-in for the Android Context. Preferences are kept in memory,
+ * files go to a fresh temporary directory and system services return fixed
+ * values.
+ */
+public class Context {
+    public static final int MODE_PRIVATE = 0;
+    public static final int BIND_AUTO_CREATE = 1;
+    public static final String WINDOW_SERVICE = "window";
+    public static final String TELEPHONY_SERVICE = "phone";
+    public static final String CONNECTIVITY_SERVICE = "connectivity";
+    public static final String ALARM_SERVICE = "alarm";
+
+    private final Map<String, SharedPreferences> preferences_ = new HashMap<String, SharedPreferences>();
+    private final File filesDir_;
+
+    public Context() {
+        try {
+            File dir = File.createTempFile("countly", "");
+            dir.delete();
+            dir.mkdirs();
+            filesDir_ = dir;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        SharedPreferences preferences = preferences_.get(name);
+        if (preferences == null) {
+            preferences = new InMemorySharedPreferences();
+            preferences_.put(name, preferences);
+        }
+        return preferences;
+    }
+
+    public File getFilesDir() {
+        return filesDir_;
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public String getPackageName() {
+        return "ly.count.android.benchmark";
+    }
+
+    public Object getSystemService(String name) {
+        if (WINDOW_SERVICE.equals(name)) return new WindowManager();
+        if (TELEPHONY_SERVICE.equals(name)) return new TelephonyManager();
+        if (CONNECTIVITY_SERVICE.equals(name)) return new ConnectivityManager();
+        if (ALARM_SERVICE.equals(name)) return new AlarmManager();
+        return null;
+    }
+
+    public Resources getResources() {
+        return new Resources();
+    }
+
+    public PackageManager getPackageManager() {
+        return new PackageManager();
+    }
+
+    public int checkCallingOrSelfPermission(String permission) {
+        return PackageManager.PERMISSION_GRANTED;
+    }
+
+    public ContentResolver getContentResolver() {
+        return new ContentResolver();
+    }
+
+    public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+        return null;
+    }
+
+    public void unregisterReceiver(BroadcastReceiver receiver) {
+    }
+
+    public boolean bindService(Intent service, ServiceConnection connection, int flags) {
+        return false;
+    }
+
+    public void unbindService(ServiceConnection connection) {
+    }
+}
@@ -0,0 +1,110 @@
+package android.content;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * SharedPreferences kept in a map. Like the real implementation, edits are
+ * staged and applied together on commit.
+ */
+class InMemorySharedPreferences implements SharedPreferences {
+    private final Map<String, Object> values_ = new HashMap<String, Object>();
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<String, Object>(values_);
+    }
+
+    @Override
+    public synchronized String getString(String key, String defValue) {
+        Object value = values_.get(key);
+        return value == null ? defValue : (String) value;
+    }
+
+    @Override
+    public synchronized int getInt(String key, int defValue) {
+        Object value = values_.get(key);
+        return value == null ? defValue : (Integer) value;
+    }
+
+    @Override
+    public synchronized long getLong(String key, long defValue) {
+        Object value = values_.get(key);
+        return value == null ? defValue : (Long) value;
+    }
+
+    @Override
+    public synchronized boolean getBoolean(String key, boolean defValue) {
+        Object value = values_.get(key);
+        return value == null ? defValue : (Boolean) value;
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return values_.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new InMemoryEditor();
+    }
+
+    private class InMemoryEditor implements Editor {
+        private final Map<String, Object> changes_ = new HashMap<String, Object>();
+        private boolean clear_;
+
+        @Override
+        public Editor putString(String key, String value) {
+            changes_.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            changes_.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            changes_.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            changes_.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            changes_.put(key, null);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            clear_ = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            synchronized (InMemorySharedPreferences.this) {
+                if (clear_) values_.clear();
+
+                for (Map.Entry<String, Object> change : changes_.entrySet()) {
+                    if (change.getValue() == null) values_.remove(change.getKey());
+                    else values_.put(change.getKey(), change.getValue());
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+    }
+}
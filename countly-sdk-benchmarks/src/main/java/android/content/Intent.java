@@ -0,0 +1,44 @@
+package android.content;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class Intent {
+    public static final String ACTION_CONFIGURATION_CHANGED = "android.intent.action.CONFIGURATION_CHANGED";
+    public static final String ACTION_LOCALE_CHANGED = "android.intent.action.LOCALE_CHANGED";
+
+    private final Map<String, String> extras_ = new HashMap<String, String>();
+    private String action_;
+
+    public Intent() {
+    }
+
+    public Intent(String action) {
+        action_ = action;
+    }
+
+    public Intent(Context context, Class<?> cls) {
+    }
+
+    public Intent setComponent(ComponentName component) {
+        return this;
+    }
+
+    public String getAction() {
+        return action_;
+    }
+
+    public Intent setAction(String action) {
+        action_ = action;
+        return this;
+    }
+
+    public Intent putExtra(String name, String value) {
+        extras_.put(name, value);
+        return this;
+    }
+
+    public String getStringExtra(String name) {
+        return extras_.get(name);
+    }
+}
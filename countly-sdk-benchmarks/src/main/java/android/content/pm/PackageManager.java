@@ -0,0 +1,24 @@
+package android.content.pm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Intent;
+
+public class PackageManager {
+    public static final int PERMISSION_GRANTED = 0;
+    public static final int PERMISSION_DENIED = -1;
+
+    public static class NameNotFoundException extends Exception {
+    }
+
+    public PackageInfo getPackageInfo(String packageName, int flags) throws NameNotFoundException {
+        PackageInfo info = new PackageInfo();
+        info.versionName = "1.0";
+        return info;
+    }
+
+    public List<ResolveInfo> queryIntentServices(Intent intent, int flags) {
+        return new ArrayList<ResolveInfo>();
+    }
+}
@@ -0,0 +1,9 @@
+package android.content.pm;
+
+public class ResolveInfo {
+    public ServiceInfo serviceInfo;
+
+    public CharSequence loadLabel(PackageManager pm) {
+        return "";
+    }
+}
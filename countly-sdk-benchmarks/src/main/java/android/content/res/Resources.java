@@ -0,0 +1,11 @@
+package android.content.res;
+
+import android.util.DisplayMetrics;
+
+public class Resources {
+    public DisplayMetrics getDisplayMetrics() {
+        DisplayMetrics metrics = new DisplayMetrics();
+        metrics.densityDpi = DisplayMetrics.DENSITY_XHIGH;
+        return metrics;
+    }
+}
@@ -0,0 +1,15 @@
+package android.net;
+
+/**
+ * Reports a connected Wi-Fi network.
+ */
+public class ConnectivityManager {
+    public static final String CONNECTIVITY_ACTION = "android.net.conn.CONNECTIVITY_CHANGE";
+    public static final int TYPE_MOBILE = 0;
+    public static final int TYPE_WIFI = 1;
+    public static final int TYPE_ETHERNET = 9;
+
+    public NetworkInfo getActiveNetworkInfo() {
+        return new NetworkInfo(TYPE_WIFI);
+    }
+}
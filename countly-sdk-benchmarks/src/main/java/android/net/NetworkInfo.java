@@ -0,0 +1,17 @@
+package android.net;
+
+public class NetworkInfo {
+    private final int type_;
+
+    public NetworkInfo(int type) {
+        type_ = type;
+    }
+
+    public boolean isConnected() {
+        return true;
+    }
+
+    public int getType() {
+        return type_;
+    }
+}
@@ -0,0 +1,12 @@
+package android.os;
+
+public class Binder implements IBinder {
+    @Override
+    public boolean transact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+        return onTransact(code, data, reply, flags);
+    }
+
+    protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+        return false;
+    }
+}
@@ -0,0 +1,9 @@
+package android.os;
+
+public class Build {
+    public static final String MODEL = "JVM";
+
+    public static class VERSION {
+        public static final String RELEASE = System.getProperty("java.version");
+    }
+}
@@ -0,0 +1,42 @@
+package android.os;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Runs posted messages on a shared daemon timer thread.
+ */
+public class Handler {
+    private static final Timer timer_ = new Timer("Handler", true);
+
+    private final Map<Runnable, TimerTask> tasks_ = new HashMap<Runnable, TimerTask>();
+
+    public Handler(Looper looper) {
+    }
+
+    public boolean post(Runnable r) {
+        return postDelayed(r, 0);
+    }
+
+    public synchronized boolean postDelayed(final Runnable r, long delayMillis) {
+        TimerTask task = new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (Handler.this) {
+                    tasks_.remove(r);
+                }
+                r.run();
+            }
+        };
+        tasks_.put(r, task);
+        timer_.schedule(task, delayMillis);
+        return true;
+    }
+
+    public synchronized void removeCallbacks(Runnable r) {
+        TimerTask task = tasks_.remove(r);
+        if (task != null) task.cancel();
+    }
+}
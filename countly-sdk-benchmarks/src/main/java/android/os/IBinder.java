@@ -0,0 +1,5 @@
+package android.os;
+
+public interface IBinder {
+    boolean transact(int code, Parcel data, Parcel reply, int flags) throws RemoteException;
+}
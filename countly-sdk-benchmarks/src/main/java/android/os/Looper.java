@@ -0,0 +1,12 @@
+package android.os;
+
+/**
+ * There is no main thread to loop on; Handler runs messages on a timer thread.
+ */
+public class Looper {
+    private static final Looper mainLooper_ = new Looper();
+
+    public static Looper getMainLooper() {
+        return mainLooper_;
+    }
+}
@@ -0,0 +1,21 @@
+package android.os;
+
+public class Parcel {
+    public static Parcel obtain() {
+        return new Parcel();
+    }
+
+    public void writeInt(int value) {
+    }
+
+    public int readInt() {
+        return 0;
+    }
+
+    public void writeString(String value) {
+    }
+
+    public String readString() {
+        return null;
+    }
+}
@@ -0,0 +1,10 @@
+package android.view;
+
+import android.util.DisplayMetrics;
+
+public class Display {
+    public void getMetrics(DisplayMetrics metrics) {
+        metrics.widthPixels = 720;
+        metrics.heightPixels = 1280;
+    }
+}
@@ -0,0 +1,38 @@
+package ly.count.android.api;
+
+import java.io.File;
+
+import android.content.Context;
+
+/**
+ * Helpers shared by the benchmarks.
+ */
+class BenchmarkSupport {
+    /**
+     * Payload shaped like a queued session update.
+     */
+    static String request(int i) {
+        return "app_key=0123456789abcdef0123456789abcdef01234567&device_id=REPLACE_UDID&timestamp="
+                + (1380000000 + i) + "&session_duration=60";
+    }
+
+    static Event event(int i) {
+        Event event = new Event();
+        event.key = "event-" + i;
+        event.count = 1;
+        event.timestamp = 1380000000 + i;
+        return event;
+    }
+
+    static void delete(Context context) {
+        delete(context.getFilesDir());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children) delete(child);
+
+        file.delete();
+    }
+}
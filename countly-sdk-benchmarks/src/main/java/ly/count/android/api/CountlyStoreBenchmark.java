@@ -0,0 +1,93 @@
+package ly.count.android.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.content.Context;
+
+/**
+ * CountlyStore operations against a store already holding backlog queued
+ * requests and backlog stored events.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CountlyStoreBenchmark {
+    @Param({"10", "100", "1000"})
+    public int backlog;
+
+    private Context context_;
+    private CountlyStore store_;
+    private List<Event> events_;
+    private int head_;
+    private int tail_;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        context_ = new Context();
+        store_ = new CountlyStore(context_);
+
+        events_ = new ArrayList<Event>();
+        for (int i = 0; i < backlog; i++) {
+            store_.addConnection(BenchmarkSupport.request(i));
+            events_.add(BenchmarkSupport.event(i));
+        }
+        store_.setEvents(events_);
+
+        head_ = 0;
+        tail_ = backlog;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        BenchmarkSupport.delete(context_);
+    }
+
+    /**
+     * Updates one of the stored events and writes the snapshot back, as the
+     * event queue's write-behind does, keeping the backlog size constant.
+     */
+    @Benchmark
+    public void setEvents() {
+        events_.get(tail_++ % backlog).count++;
+        store_.setEvents(events_);
+    }
+
+    @Benchmark
+    public List<Event> eventsList() {
+        return store_.eventsList();
+    }
+
+    @Benchmark
+    public void addConnection() {
+        store_.addConnection(BenchmarkSupport.request(tail_++));
+    }
+
+    /**
+     * Queues one request and acknowledges the oldest one, the steady state of a
+     * sender keeping up with the producer.
+     */
+    @Benchmark
+    public void addAndRemoveConnection() {
+        store_.addConnection(BenchmarkSupport.request(tail_++));
+        store_.removeConnection(BenchmarkSupport.request(head_++));
+    }
+}
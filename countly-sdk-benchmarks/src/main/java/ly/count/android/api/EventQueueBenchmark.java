@@ -0,0 +1,105 @@
+package ly.count.android.api;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.content.Context;
+
+/**
+ * Recording into and serializing the in-memory event table. The benchmark
+ * thread stands in for the actor thread, so write-behind is paused to keep the
+ * table single-threaded. The timer and actor threads are started once per
+ * trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventQueueBenchmark {
+    @Param({"1", "10", "100"})
+    public int distinctKeys;
+
+    private Context context_;
+    private Timer timer_;
+    private Actor actor_;
+    private EventQueue eventQueue_;
+    private String[] keys_;
+    private Map<String, String> segmentation_;
+    private Segmentation interned_;
+    private int next_;
+
+    @Setup(Level.Trial)
+    public void startThreads() {
+        timer_ = new Timer(true);
+        actor_ = new Actor("Benchmark-Actor");
+    }
+
+    @TearDown(Level.Trial)
+    public void stopThreads() {
+        actor_.stop();
+        timer_.cancel();
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        context_ = new Context();
+        eventQueue_ = new EventQueue(new CountlyStore(context_), timer_, actor_);
+        eventQueue_.setWriteBehind(3600, Integer.MAX_VALUE);
+        eventQueue_.pause();
+
+        keys_ = new String[distinctKeys];
+        for (int i = 0; i < distinctKeys; i++) keys_[i] = "event-" + i;
+
+        segmentation_ = new HashMap<String, String>();
+        segmentation_.put("screen", "main");
+        segmentation_.put("source", "benchmark");
+        interned_ = Segmentation.of(segmentation_);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        BenchmarkSupport.delete(context_);
+    }
+
+    @Benchmark
+    public void recordEvent() {
+        eventQueue_.recordEvent(keys_[next_++ % distinctKeys], segmentation_, 1, 0.5);
+    }
+
+    /**
+     * Same as recordEvent, with the segmentation already converted, which is
+     * the part done on the caller's thread by Countly.recordEvent.
+     */
+    @Benchmark
+    public void recordSegmentation() {
+        eventQueue_.recordEvent(keys_[next_++ % distinctKeys], interned_, 1, 0.5, 1380000000);
+    }
+
+    /**
+     * Fills the table with distinctKeys events and drains it into the
+     * URL-encoded payload of an events request.
+     */
+    @Benchmark
+    public String events() {
+        for (String key : keys_) eventQueue_.recordEvent(key, segmentation_, 1, 0.5);
+        return eventQueue_.events();
+    }
+}
@@ -0,0 +1,144 @@
+package ly.count.android.api;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * In-process {@link Transport} that records requests instead of sending them,
+ * for exercising the queue without a network.
+ *
+ * Every call waits for the configured latency plus a random jitter, or fails
+ * with a SocketTimeoutException once that exceeds the read timeout. It then
+ * fails with an IOException, or answers with the error status, at the
+ * configured rates, and otherwise answers 200, or 415 to compressed bodies
+ * when those are rejected. Each attempt is recorded along with its outcome.
+ */
+class MockCollector implements Transport {
+    /**
+     * Status recorded for attempts that failed with an exception.
+     */
+    protected static final int NO_RESPONSE = -1;
+
+    static class Request {
+        public final String method;
+        public final String url;
+        public final String contentType;
+        public final String contentEncoding;
+        public final byte[] body;
+        public int status = NO_RESPONSE;
+
+        Request(String method, String url, String contentType, String contentEncoding, byte[] body) {
+            this.method = method;
+            this.url = url;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.body = body;
+        }
+    }
+
+    private final List<Request> requests_ = new ArrayList<Request>();
+    private final Random random_ = new Random();
+    private int readTimeout_ = PooledHttpTransport.DEFAULT_READ_TIMEOUT;
+    private long latency_ = 0;
+    private long jitter_ = 0;
+    private double ioErrorRate_ = 0;
+    private double statusErrorRate_ = 0;
+    private int errorStatus_ = 500;
+    private boolean rejectsCompression_ = false;
+
+    /**
+     * Every call takes latency milliseconds plus up to jitter more.
+     */
+    public synchronized void setLatency(long latency, long jitter) {
+        latency_ = latency;
+        jitter_ = jitter;
+    }
+
+    /**
+     * Fails ioErrorRate of the calls with an IOException and answers
+     * statusErrorRate of them with errorStatus, both between 0 and 1.
+     */
+    public synchronized void setErrors(double ioErrorRate, double statusErrorRate, int errorStatus) {
+        ioErrorRate_ = ioErrorRate;
+        statusErrorRate_ = statusErrorRate;
+        errorStatus_ = errorStatus;
+    }
+
+    /**
+     * Answers POSTs with a Content-Encoding with 415, as servers that can't
+     * decompress bodies do.
+     */
+    public synchronized void setRejectsCompression(boolean rejects) {
+        rejectsCompression_ = rejects;
+    }
+
+    public synchronized List<Request> requests() {
+        return new ArrayList<Request>(requests_);
+    }
+
+    public synchronized int requestCount() {
+        return requests_.size();
+    }
+
+    public synchronized void clear() {
+        requests_.clear();
+    }
+
+    @Override
+    public synchronized void setTimeouts(int connectTimeout, int readTimeout) {
+        readTimeout_ = readTimeout;
+    }
+
+    @Override
+    public int get(String url) throws IOException {
+        return respond(new Request("GET", url, null, null, null));
+    }
+
+    @Override
+    public int post(String url, String contentType, String contentEncoding, byte[] body) throws IOException {
+        return respond(new Request("POST", url, contentType, contentEncoding, body.clone()));
+    }
+
+    private int respond(Request request) throws IOException {
+        long delay;
+        boolean timeout;
+        double outcome;
+
+        synchronized (this) {
+            requests_.add(request);
+
+            delay = latency_ + (jitter_ > 0 ? (long) (random_.nextDouble() * jitter_) : 0);
+            timeout = readTimeout_ > 0 && delay > readTimeout_;
+            if (timeout) delay = readTimeout_;
+            outcome = random_.nextDouble();
+        }
+
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        synchronized (this) {
+            if (timeout)
+                throw new SocketTimeoutException("Read timed out");
+            if (outcome < ioErrorRate_)
+                throw new IOException("Injected failure");
+
+            if (outcome < ioErrorRate_ + statusErrorRate_)
+                request.status = errorStatus_;
+            else if (rejectsCompression_ && request.contentEncoding != null)
+                request.status = 415;
+            else
+                request.status = 200;
+            return request.status;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package ly.count.android.api;
+
+import java.util.Timer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.content.Context;
+
+/**
+ * Encoding the requests ConnectionQueue stores for each request type.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBuildingBenchmark {
+    private static final String EVENTS = "%5B%7B%22key%22%3A%22event-0%22%2C%22count%22%3A1%2C%22sum%22%3A0%2C"
+            + "%22timestamp%22%3A1380000000%7D%5D";
+    private static final String UNRESOLVED_REQUEST = "app_key=0123456789abcdef0123456789abcdef01234567"
+            + "&device_id=REPLACE_UDID&timestamp=1380000000&session_duration=60";
+
+    private Context context_;
+    private Timer timer_;
+    private MetricsCache metricsCache_;
+    private RequestEncoder encoder_;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context_ = new Context();
+        timer_ = new Timer(true);
+
+        metricsCache_ = new MetricsCache(context_, timer_);
+        encoder_ = new RequestEncoder("0123456789abcdef0123456789abcdef01234567");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        timer_.cancel();
+        BenchmarkSupport.delete(context_);
+    }
+
+    @Benchmark
+    public int beginSession() {
+        encoder_.beginSession(System.currentTimeMillis() / 1000, metricsCache_.get());
+        return encoder_.length();
+    }
+
+    @Benchmark
+    public int updateSession() {
+        encoder_.updateSession(System.currentTimeMillis() / 1000, 60);
+        return encoder_.length();
+    }
+
+    @Benchmark
+    public int endSession() {
+        encoder_.endSession(System.currentTimeMillis() / 1000, 60);
+        return encoder_.length();
+    }
+
+    @Benchmark
+    public int recordEvents() {
+        encoder_.recordEvents(System.currentTimeMillis() / 1000, EVENTS);
+        return encoder_.length();
+    }
+
+    /**
+     * Filling in the device ID of a request queued before it was known.
+     */
+    @Benchmark
+    public String resolve() {
+        return encoder_.resolve(UNRESOLVED_REQUEST);
+    }
+}
@@ -0,0 +1,96 @@
+package ly.count.android.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Round trips through each Transport against a collector on localhost that
+ * answers every request with a small JSON body, as the Countly server does.
+ * The mock transport shows the cost of the SDK side alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportBenchmark {
+    private static final byte[] RESPONSE = "{\"result\":\"Success\"}".getBytes();
+    private static final String CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+    @Param({"pooled", "urlconnection", "mock"})
+    public String transport;
+
+    private HttpServer server_;
+    private Transport transport_;
+    private String url_;
+    private byte[] body_;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // Without this the server's separate header and body writes meet the
+        // client's delayed ACK and every round trip takes 40 ms.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        server_ = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server_.createContext("/i", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream input = exchange.getRequestBody();
+                while (input.read() != -1)
+                    ;
+                exchange.sendResponseHeaders(200, RESPONSE.length);
+                exchange.getResponseBody().write(RESPONSE);
+                exchange.close();
+            }
+        });
+        server_.start();
+
+        if ("pooled".equals(transport)) transport_ = PooledHttpTransport.sharedInstance();
+        else if ("urlconnection".equals(transport)) transport_ = new UrlConnectionTransport();
+        else transport_ = new MockCollector();
+
+        url_ = "http://127.0.0.1:" + server_.getAddress().getPort() + "/i";
+        body_ = BenchmarkSupport.request(0).getBytes("UTF-8");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server_.stop(0);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearRecorded() {
+        if (transport_ instanceof MockCollector) ((MockCollector) transport_).clear();
+    }
+
+    @Benchmark
+    public int get() throws IOException {
+        return transport_.get(url_ + "?" + BenchmarkSupport.request(0));
+    }
+
+    @Benchmark
+    public int post() throws IOException {
+        return transport_.post(url_, CONTENT_TYPE, null, body_);
+    }
+}
@@ -0,0 +1,184 @@
+package ly.count.android.api;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.content.Context;
+
+/**
+ * Reopens a ConnectionLog over files damaged the way a process dying in the
+ * middle of a write leaves them.
+ */
+public class ConnectionLogTest {
+    private Context context_;
+    private File dir_;
+
+    @Before
+    public void setUp() {
+        context_ = new Context();
+        dir_ = new File(context_.getFilesDir(), "countly");
+    }
+
+    @After
+    public void tearDown() {
+        BenchmarkSupport.delete(context_);
+    }
+
+    private static String[] requests(int from, int to) {
+        String[] requests = new String[to - from];
+        for (int i = from; i < to; i++) requests[i - from] = BenchmarkSupport.request(i);
+        return requests;
+    }
+
+    private ConnectionLog newLog(int from, int to) {
+        ConnectionLog log = new ConnectionLog(dir_);
+        for (String request : requests(from, to)) log.append(request);
+        return log;
+    }
+
+    private File segment(long segment) {
+        return new File(dir_, "connections-" + segment + ".log");
+    }
+
+    private static byte[] record(int length, String data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(length);
+        out.writeByte(1 << 1);
+        out.write(data.getBytes("UTF-8"));
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static void append(File file, byte[] data) throws IOException {
+        OutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void assertRecovered(long intactLength) {
+        ConnectionLog log = new ConnectionLog(dir_);
+
+        assertEquals(2, log.size());
+        assertArrayEquals(requests(0, 2), log.readAll());
+        assertEquals(intactLength, segment(0).length());
+
+        // Appends after the truncated tail are readable again.
+        log.append(BenchmarkSupport.request(2));
+        assertArrayEquals(requests(0, 3), new ConnectionLog(dir_).readAll());
+    }
+
+    @Test
+    public void reopenKeepsRecordsAndRemovals() {
+        ConnectionLog log = newLog(0, 3);
+        log.remove(BenchmarkSupport.request(0));
+
+        ConnectionLog reopened = new ConnectionLog(dir_);
+
+        assertEquals(2, reopened.size());
+        assertEquals(log.byteSize(), reopened.byteSize());
+        assertArrayEquals(requests(1, 3), reopened.readAll());
+    }
+
+    @Test
+    public void reopenDropsTornRecord() throws IOException {
+        newLog(0, 2);
+        long intact = segment(0).length();
+
+        String request = BenchmarkSupport.request(2);
+        append(segment(0), record(request.length(), request.substring(0, 10)));
+
+        assertRecovered(intact);
+    }
+
+    @Test
+    public void reopenDropsTornHeader() throws IOException {
+        newLog(0, 2);
+        long intact = segment(0).length();
+
+        append(segment(0), new byte[] {0, 0});
+
+        assertRecovered(intact);
+    }
+
+    @Test
+    public void reopenDropsZeroFilledTail() throws IOException {
+        newLog(0, 2);
+        long intact = segment(0).length();
+
+        append(segment(0), new byte[64]);
+
+        assertRecovered(intact);
+    }
+
+    @Test
+    public void reopenDropsNegativeLength() throws IOException {
+        newLog(0, 2);
+        long intact = segment(0).length();
+
+        append(segment(0), record(-1, "garbage"));
+
+        assertRecovered(intact);
+    }
+
+    @Test
+    public void rewriteReplacesRecordsAndSurvivesReopen() {
+        ConnectionLog log = newLog(0, 3);
+
+        log.rewrite(Arrays.asList(requests(5, 7)));
+
+        assertEquals(2, log.size());
+        assertArrayEquals(requests(5, 7), log.readAll());
+        assertFalse(segment(0).exists());
+        assertArrayEquals(requests(5, 7), new ConnectionLog(dir_).readAll());
+    }
+
+    @Test
+    public void reopenFinishesCommittedRewrite() throws IOException {
+        newLog(0, 2);
+
+        // The process died after moving the cursor onto the compacted file
+        // but before renaming it into place.
+        String request = BenchmarkSupport.request(5);
+        append(new File(dir_, "connections-1.compact"), record(request.length(), request));
+        DataOutputStream cursor = new DataOutputStream(new FileOutputStream(new File(dir_, "connections.cursor")));
+        cursor.writeLong(1);
+        cursor.writeLong(0);
+        cursor.close();
+
+        ConnectionLog log = new ConnectionLog(dir_);
+
+        assertArrayEquals(new String[] {request}, log.readAll());
+        assertFalse(segment(0).exists());
+        assertFalse(new File(dir_, "connections-1.compact").exists());
+    }
+
+    @Test
+    public void reopenDiscardsUncommittedRewrite() throws IOException {
+        newLog(0, 2);
+
+        String request = BenchmarkSupport.request(5);
+        append(new File(dir_, "connections-1.compact"), record(request.length(), request));
+
+        ConnectionLog log = new ConnectionLog(dir_);
+
+        assertArrayEquals(requests(0, 2), log.readAll());
+        assertFalse(new File(dir_, "connections-1.compact").exists());
+    }
+}
@@ -0,0 +1,384 @@
+package ly.count.android.api;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.content.Context;
+
+/**
+ * Drives a ConnectionQueue against a MockCollector. Tests call drain() on
+ * their own thread for the first turn; retries after a failure are left to
+ * the shared sender thread, as in the SDK.
+ */
+public class ConnectionQueueTest {
+    private static final String SERVER_URL = "http://collector";
+    private static final String APP_KEY = "0123456789abcdef0123456789abcdef01234567";
+    private static final long TIMEOUT = 5000;
+
+    private Context context_;
+    private CountlyStore store_;
+    private LocalUploadHost host_;
+    private DeviceSampler sampler_;
+    private MockCollector collector_;
+    private ConnectionQueue queue_;
+
+    @Before
+    public void setUp() {
+        context_ = new Context();
+        store_ = new CountlyStore(context_);
+        host_ = new LocalUploadHost();
+        sampler_ = new DeviceSampler();
+        collector_ = new MockCollector();
+        queue_ = newQueue(collector_);
+    }
+
+    @After
+    public void tearDown() {
+        // Keeps the shared sender from draining this queue after the test.
+        sampler_.setRate(0);
+        host_.cancelWakeUp();
+        BenchmarkSupport.delete(context_);
+    }
+
+    private ConnectionQueue newQueue(Transport transport) {
+        ConnectionQueue queue = new ConnectionQueue();
+        queue.setDeviceSampler(sampler_);
+        queue.setContext(context_);
+        queue.setServerURL(SERVER_URL);
+        queue.setAppKey(APP_KEY);
+        queue.setCountlyStore(store_);
+        queue.setUploadHost(host_);
+        queue.setTransport(transport);
+        return queue;
+    }
+
+    private static String request(int i) {
+        return "app_key=" + APP_KEY + "&device_id=device&timestamp=" + (1380000000 + i) + "&session_duration=60";
+    }
+
+    private void queue(int from, int to) {
+        for (int i = from; i < to; i++) store_.addConnection(request(i));
+    }
+
+    private void awaitRequestCount(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (collector_.requestCount() < count && System.currentTimeMillis() < deadline) Thread.sleep(5);
+
+        assertEquals(count, collector_.requestCount());
+    }
+
+    @Test
+    public void sendsQueuedRequestsInOrderAndRemovesThem() {
+        queue(0, 3);
+        queue_.drain();
+
+        List<MockCollector.Request> requests = collector_.requests();
+        assertEquals(3, requests.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("GET", requests.get(i).method);
+            assertEquals(SERVER_URL + "/i?" + request(i), requests.get(i).url);
+        }
+        assertTrue(store_.isEmptyConnections());
+        assertEquals(0, queue_.retryDelay());
+    }
+
+    @Test
+    public void serverErrorKeepsRequestAndRetriesAfterBackoff() throws InterruptedException {
+        queue_.setRetryBackoff(100, 100, 5, 1000);
+        collector_.setErrors(0, 1, 500);
+
+        queue(0, 1);
+        queue_.drain();
+
+        assertEquals(1, collector_.requestCount());
+        assertEquals(1, store_.connectionCount());
+        long delay = queue_.retryDelay();
+        assertTrue(delay > 0 && delay <= 100);
+
+        // Still backing off, so a turn sends nothing.
+        queue_.drain();
+        assertEquals(1, collector_.requestCount());
+
+        collector_.setErrors(0, 0, 500);
+        awaitRequestCount(2);
+        Thread.sleep(50);
+
+        assertEquals(200, collector_.requests().get(1).status);
+        assertTrue(store_.isEmptyConnections());
+        assertEquals(0, queue_.retryDelay());
+    }
+
+    @Test
+    public void networkFailureKeepsRequest() {
+        collector_.setErrors(1, 0, 500);
+
+        queue(0, 2);
+        queue_.drain();
+
+        assertEquals(1, collector_.requestCount());
+        assertEquals(MockCollector.NO_RESPONSE, collector_.requests().get(0).status);
+        assertEquals(2, store_.connectionCount());
+        assertTrue(queue_.retryDelay() > 0);
+    }
+
+    @Test
+    public void breakerOpensAfterConsecutiveFailures() throws InterruptedException {
+        queue_.setRetryBackoff(1, 1, 3, 60 * 1000);
+        collector_.setErrors(1, 0, 500);
+
+        queue(0, 1);
+        queue_.drain();
+        awaitRequestCount(3);
+        Thread.sleep(200);
+
+        assertEquals(3, collector_.requestCount());
+        assertTrue(queue_.retryDelay() > 30 * 1000);
+        assertEquals(1, store_.connectionCount());
+    }
+
+    @Test
+    public void sampledOutDeviceSendsNothing() {
+        sampler_.setRate(0);
+
+        queue(0, 2);
+        queue_.drain();
+
+        assertEquals(0, collector_.requestCount());
+        assertEquals(2, store_.connectionCount());
+    }
+
+    @Test
+    public void drainingWhileSampledOutSendsTheBacklogOnce() {
+        sampler_.setRate(0);
+        queue_.drainWhileSampledOut();
+
+        queue(0, 2);
+        queue_.drain();
+
+        assertEquals(2, collector_.requestCount());
+        assertTrue(store_.isEmptyConnections());
+
+        // Draining ends with the backlog.
+        queue(2, 3);
+        queue_.drain();
+
+        assertEquals(2, collector_.requestCount());
+        assertEquals(1, store_.connectionCount());
+    }
+
+    @Test
+    public void bulkSendRemovesExactlyTheSentRequests() throws Exception {
+        // Records a new request while each batch is in flight.
+        MockCollector recording = new MockCollector() {
+            private int next_ = 100;
+
+            @Override
+            public int post(String url, String contentType, String contentEncoding, byte[] body) throws IOException {
+                if (next_ < 102) store_.addConnection(request(next_++));
+                return super.post(url, contentType, contentEncoding, body);
+            }
+        };
+        queue_ = newQueue(recording);
+        queue_.setPayloadCodec(null);
+        queue_.setBulkMode(true, 2, 64 * 1024);
+
+        queue(0, 3);
+        queue_.drain();
+
+        List<String> sent = new ArrayList<String>();
+        for (MockCollector.Request request : recording.requests()) {
+            assertEquals(SERVER_URL + "/i/bulk", request.url);
+            String body = URLDecoder.decode(new String(request.body, "UTF-8"), "UTF-8");
+            JSONArray batch = new JSONArray(body.substring("requests=".length()));
+            assertTrue(batch.length() <= 2);
+            for (int i = 0; i < batch.length(); i++) sent.add(batch.getJSONObject(i).getString("timestamp"));
+        }
+
+        List<String> expected = new ArrayList<String>();
+        for (int i : new int[] {0, 1, 2, 100, 101}) expected.add(Integer.toString(1380000000 + i));
+        assertEquals(expected, sent);
+        assertTrue(store_.isEmptyConnections());
+    }
+
+    @Test
+    public void failedBulkSendKeepsTheBatch() {
+        collector_.setErrors(0, 1, 500);
+        queue_.setBulkMode(true, 2, 64 * 1024);
+
+        queue(0, 3);
+        queue_.drain();
+
+        assertEquals(1, collector_.requestCount());
+        assertArrayEquals(new String[] {request(0), request(1), request(2)}, store_.connections());
+    }
+
+    @Test
+    public void refusedBulkSendDropsOnlyTheRefusedRequest() {
+        // Refuses every batch and, on its own, the request with timestamp 1.
+        final String refused = request(1);
+        MockCollector strict = new MockCollector() {
+            @Override
+            public int get(String url) throws IOException {
+                super.get(url);
+                return url.endsWith(refused) ? 400 : 200;
+            }
+
+            @Override
+            public int post(String url, String contentType, String contentEncoding, byte[] body) throws IOException {
+                super.post(url, contentType, contentEncoding, body);
+                return 400;
+            }
+        };
+        queue_ = newQueue(strict);
+        queue_.setPayloadCodec(null);
+        queue_.setBulkMode(true, 10, 64 * 1024);
+
+        queue(0, 3);
+        queue_.drain();
+
+        List<MockCollector.Request> requests = strict.requests();
+        assertEquals(4, requests.size());
+        assertEquals(SERVER_URL + "/i/bulk", requests.get(0).url);
+        for (int i = 0; i < 3; i++) assertEquals(SERVER_URL + "/i?" + request(i), requests.get(i + 1).url);
+        assertTrue(store_.isEmptyConnections());
+        assertEquals(0, queue_.retryDelay());
+    }
+
+    @Test
+    public void postModeSendsCompressedBodies() throws IOException {
+        queue_.setPostMode(true);
+
+        queue(0, 1);
+        queue_.drain();
+
+        MockCollector.Request request = collector_.requests().get(0);
+        assertEquals("POST", request.method);
+        assertEquals(SERVER_URL + "/i", request.url);
+        assertEquals("gzip", request.contentEncoding);
+        assertEquals(request(0), new String(gunzip(request.body), "UTF-8"));
+        assertTrue(store_.isEmptyConnections());
+    }
+
+    @Test
+    public void rejectedCompressionFallsBackToGet() {
+        queue_.setPostMode(true);
+        collector_.setRejectsCompression(true);
+
+        queue(0, 2);
+        queue_.drain();
+
+        List<MockCollector.Request> requests = collector_.requests();
+        assertEquals(3, requests.size());
+        assertEquals("POST", requests.get(0).method);
+        assertEquals(415, requests.get(0).status);
+        assertEquals("GET", requests.get(1).method);
+        assertEquals(SERVER_URL + "/i?" + request(0), requests.get(1).url);
+        // Compression stays off for the rest of the process.
+        assertEquals("GET", requests.get(2).method);
+        assertEquals(SERVER_URL + "/i?" + request(1), requests.get(2).url);
+        assertTrue(store_.isEmptyConnections());
+        assertEquals(0, queue_.retryDelay());
+    }
+
+    @Test
+    public void badRequestKeepsCompressionOn() {
+        // Refuses the request with timestamp 0 however it is sent.
+        final String refused = request(0);
+        MockCollector strict = new MockCollector() {
+            @Override
+            public int get(String url) throws IOException {
+                super.get(url);
+                return url.endsWith(refused) ? 400 : 200;
+            }
+
+            @Override
+            public int post(String url, String contentType, String contentEncoding, byte[] body) throws IOException {
+                super.post(url, contentType, contentEncoding, body);
+                return new String(gunzip(body), "UTF-8").equals(refused) ? 400 : 200;
+            }
+        };
+        queue_ = newQueue(strict);
+        queue_.setPostMode(true);
+
+        queue(0, 2);
+        queue_.drain();
+
+        List<MockCollector.Request> requests = strict.requests();
+        assertEquals(3, requests.size());
+        assertEquals("POST", requests.get(0).method);
+        assertEquals("GET", requests.get(1).method);
+        assertEquals(SERVER_URL + "/i?" + request(0), requests.get(1).url);
+        assertEquals("POST", requests.get(2).method);
+        assertEquals("gzip", requests.get(2).contentEncoding);
+        assertTrue(store_.isEmptyConnections());
+    }
+
+    @Test
+    public void compressionRefusedWithBadRequestFallsBackToGet() {
+        // Answers any compressed body with a 400 instead of a 415.
+        MockCollector plainOnly = new MockCollector() {
+            @Override
+            public int post(String url, String contentType, String contentEncoding, byte[] body) throws IOException {
+                super.post(url, contentType, contentEncoding, body);
+                return contentEncoding != null ? 400 : 200;
+            }
+        };
+        queue_ = newQueue(plainOnly);
+        queue_.setPostMode(true);
+
+        queue(0, 2);
+        queue_.drain();
+
+        List<MockCollector.Request> requests = plainOnly.requests();
+        assertEquals(3, requests.size());
+        assertEquals("gzip", requests.get(0).contentEncoding);
+        assertEquals("GET", requests.get(1).method);
+        assertEquals("GET", requests.get(2).method);
+        assertEquals(SERVER_URL + "/i?" + request(1), requests.get(2).url);
+        assertTrue(store_.isEmptyConnections());
+    }
+
+    @Test
+    public void rejectedCompressionFallsBackToPlainPostForBulk() {
+        queue_.setBulkMode(true, 10, 64 * 1024);
+        collector_.setRejectsCompression(true);
+
+        queue(0, 2);
+        queue_.drain();
+
+        List<MockCollector.Request> requests = collector_.requests();
+        assertEquals(2, requests.size());
+        assertEquals("gzip", requests.get(0).contentEncoding);
+        assertEquals(415, requests.get(0).status);
+        assertEquals("POST", requests.get(1).method);
+        assertEquals(SERVER_URL + "/i/bulk", requests.get(1).url);
+        assertNull(requests.get(1).contentEncoding);
+        assertEquals(200, requests.get(1).status);
+        assertTrue(store_.isEmptyConnections());
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+}
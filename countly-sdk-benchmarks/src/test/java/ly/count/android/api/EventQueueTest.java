@@ -0,0 +1,87 @@
+package ly.count.android.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Timer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.content.Context;
+
+/**
+ * The test thread stands in for the actor thread, so write-behind is paused.
+ */
+public class EventQueueTest {
+    private static final Segmentation NONE = null;
+
+    private Context context_;
+    private Timer timer_;
+    private Actor actor_;
+    private EventQueue eventQueue_;
+
+    @Before
+    public void setUp() {
+        context_ = new Context();
+        timer_ = new Timer(true);
+        actor_ = new Actor("Test-Actor");
+        eventQueue_ = new EventQueue(new CountlyStore(context_), timer_, actor_);
+        eventQueue_.setWriteBehind(3600, Integer.MAX_VALUE);
+        eventQueue_.pause();
+    }
+
+    @After
+    public void tearDown() {
+        actor_.stop();
+        timer_.cancel();
+        BenchmarkSupport.delete(context_);
+    }
+
+    private static int now() {
+        return (int) (System.currentTimeMillis() / 1000);
+    }
+
+    @Test
+    public void oldestAgeCountsFromTheFirstEventOfAnAggregate() {
+        eventQueue_.recordEvent("a", NONE, 1, 0, now() - 600);
+        eventQueue_.recordEvent("a", NONE, 1, 0, now());
+
+        assertEquals(1, eventQueue_.size());
+        assertTrue(eventQueue_.oldestAge() >= 600 * 1000);
+    }
+
+    @Test
+    public void oldestAgeForgetsDroppedEvents() {
+        eventQueue_.setLimits(2, Integer.MAX_VALUE);
+
+        eventQueue_.recordEvent("old", NONE, 1, 0, now() - 3600);
+        eventQueue_.recordEvent("b", NONE, 1, 0, now());
+        eventQueue_.recordEvent("c", NONE, 1, 0, now());
+
+        assertEquals(2, eventQueue_.size());
+        assertTrue(eventQueue_.oldestAge() < 60 * 1000);
+    }
+
+    @Test
+    public void oldestAgeFollowsFoldedEvents() {
+        eventQueue_.setLimits(1, Integer.MAX_VALUE);
+        eventQueue_.setEvictionPolicy(EvictionPolicy.FOLD_EVENTS);
+
+        eventQueue_.recordEvent("a", Segmentation.of(Collections.singletonMap("k", "1")), 1, 0, now() - 600);
+        eventQueue_.recordEvent("a", NONE, 1, 0, now());
+
+        assertEquals(1, eventQueue_.size());
+        assertTrue(eventQueue_.oldestAge() >= 600 * 1000);
+    }
+
+    @Test
+    public void emptyQueueHasNoAge() {
+        eventQueue_.recordEvent("a", NONE, 1, 0, now() - 600);
+        eventQueue_.events();
+
+        assertEquals(0, eventQueue_.oldestAge());
+    }
+}
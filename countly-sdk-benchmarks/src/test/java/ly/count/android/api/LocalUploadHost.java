@@ -0,0 +1,81 @@
+package ly.count.android.api;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Plain JVM stand-in for {@link AndroidUploadHost}. Connectivity is whatever
+ * was last set with {@link #setConnectivity(boolean, boolean)} and wake-ups
+ * run on a private timer, so unlike the real ones they end with the process.
+ */
+class LocalUploadHost implements UploadHost {
+    private final Timer timer_ = new Timer("Countly-WakeUp", true);
+    private volatile boolean connected_ = true;
+    private volatile boolean metered_ = false;
+    private volatile Runnable listener_;
+    private TimerTask wakeUp_;
+    private long wakeUpTime_;
+
+    /**
+     * Changes the simulated network and notifies the listener, as a
+     * connectivity broadcast would.
+     */
+    public void setConnectivity(boolean connected, boolean metered) {
+        connected_ = connected;
+        metered_ = metered;
+        notifyListener();
+    }
+
+    /**
+     * Time of the pending wake-up, 0 if there is none.
+     */
+    public synchronized long wakeUpTime() {
+        return wakeUpTime_;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected_;
+    }
+
+    @Override
+    public boolean isMetered() {
+        return metered_;
+    }
+
+    @Override
+    public void setListener(Runnable listener) {
+        listener_ = listener;
+    }
+
+    @Override
+    public synchronized void scheduleWakeUp(long time) {
+        cancelWakeUp();
+
+        wakeUpTime_ = time;
+        wakeUp_ = new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (LocalUploadHost.this) {
+                    if (wakeUp_ != this) return;
+                    wakeUp_ = null;
+                    wakeUpTime_ = 0;
+                }
+                notifyListener();
+            }
+        };
+        timer_.schedule(wakeUp_, Math.max(0, time - System.currentTimeMillis()));
+    }
+
+    @Override
+    public synchronized void cancelWakeUp() {
+        if (wakeUp_ != null) wakeUp_.cancel();
+        wakeUp_ = null;
+        wakeUpTime_ = 0;
+    }
+
+    private void notifyListener() {
+        Runnable listener = listener_;
+        if (listener != null) listener.run();
+    }
+}
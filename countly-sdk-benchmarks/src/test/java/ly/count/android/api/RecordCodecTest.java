@@ -0,0 +1,168 @@
+package ly.count.android.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class RecordCodecTest {
+    private static Event event(String key, Map<String, String> segmentation, int count, double sum, int timestamp) {
+        Event event = new Event();
+        event.key = key;
+        event.segmentation = Segmentation.of(segmentation);
+        event.count = count;
+        event.sum = sum;
+        event.timestamp = timestamp;
+        return event;
+    }
+
+    private static Map<String, String> segmentation(String... pairs) {
+        Map<String, String> map = new HashMap<String, String>();
+        for (int i = 0; i < pairs.length; i += 2) map.put(pairs[i], pairs[i + 1]);
+        return map;
+    }
+
+    private static List<Event> sample() {
+        List<Event> events = new ArrayList<Event>();
+        events.add(event("purchase", segmentation("country", "de", "plan", "pro"), 3, 29.97, 1380000000));
+        events.add(event("purchase", segmentation("country", "de", "plan", "free"), -1, -0.5, 1380000100));
+        events.add(event("launch", null, 1, 0, Integer.MAX_VALUE));
+        events.add(event(null, segmentation("plan", null), 0, Double.NaN, 0));
+        return events;
+    }
+
+    private static byte[] write(List<Event> events) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RecordCodec.Writer writer = new RecordCodec.Writer(out, events.size());
+        for (Event e : events) writer.writeEvent(e);
+        return out.toByteArray();
+    }
+
+    private static List<Event> read(byte[] data) throws IOException {
+        RecordCodec.Reader reader = new RecordCodec.Reader(new ByteArrayInputStream(data));
+        List<Event> events = new ArrayList<Event>();
+        while (reader.hasNext()) events.add(reader.readEvent());
+        return events;
+    }
+
+    private static void assertSameEvents(List<Event> expected, List<Event> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Event e = expected.get(i);
+            Event a = actual.get(i);
+            assertEquals(e, a);
+            assertEquals(e.count, a.count);
+            assertEquals(e.sum, a.sum, 0);
+        }
+    }
+
+    /**
+     * Writes events the way version 1 of the format did: no dictionary,
+     * every string written in full.
+     */
+    private static byte[] writeVersion1(List<Event> events) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(RecordCodec.VERSION_WITHOUT_DICTIONARY);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        RecordCodec.Writer plain = new RecordCodec.Writer(body, events.size());
+        for (Event e : events) {
+            plain.writeString(e.key);
+            plain.writeVarint(((long) e.count << 1) ^ ((long) e.count >> 63));
+            plain.writeDouble(e.sum);
+            plain.writeVarint(e.timestamp & 0xffffffffL);
+            if (e.segmentation == null) {
+                plain.writeVarint(0);
+            } else {
+                plain.writeVarint(e.segmentation.size() + 1);
+                for (int i = 0; i < e.segmentation.size(); i++) {
+                    plain.writeString(e.segmentation.key(i));
+                    plain.writeString(e.segmentation.value(i));
+                }
+            }
+        }
+
+        // Drop the version 2 byte the writer starts its stream with.
+        byte[] written = body.toByteArray();
+        bytes.write(written, 1, written.length - 1);
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void roundTripsEvents() throws IOException {
+        List<Event> events = sample();
+        byte[] data = write(events);
+
+        assertEquals(RecordCodec.VERSION, data[0]);
+        assertEquals(events.size(), new RecordCodec.Reader(new ByteArrayInputStream(data)).count());
+        assertSameEvents(events, read(data));
+    }
+
+    @Test
+    public void writesRepeatedStringsOnce() throws IOException {
+        List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < 100; i++)
+            events.add(event("purchase", segmentation("country", "de"), 1, 0, 1380000000 + i));
+
+        byte[] data = write(events);
+
+        // After the first event each string is written as a one-byte number.
+        assertEquals(99 * "purchasecountryde".length(), writeVersion1(events).length - data.length);
+        assertSameEvents(events, read(data));
+    }
+
+    @Test
+    public void readsVersion1AndRewritesItAsVersion2() throws IOException {
+        List<Event> events = sample();
+        byte[] v1 = writeVersion1(events);
+        assertEquals(RecordCodec.VERSION_WITHOUT_DICTIONARY, v1[0]);
+
+        List<Event> migrated = read(v1);
+        assertSameEvents(events, migrated);
+
+        byte[] v2 = write(migrated);
+        assertEquals(RecordCodec.VERSION, v2[0]);
+        assertTrue(v2.length < v1.length);
+        assertSameEvents(events, read(v2));
+    }
+
+    @Test
+    public void emptyStreamHasNoEvents() throws IOException {
+        RecordCodec.Reader reader = new RecordCodec.Reader(new ByteArrayInputStream(write(new ArrayList<Event>())));
+
+        assertEquals(0, reader.count());
+        assertFalse(reader.hasNext());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownVersion() throws IOException {
+        new RecordCodec.Reader(new ByteArrayInputStream(new byte[] {(byte) (RecordCodec.VERSION + 1), 0}));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedStream() throws IOException {
+        byte[] data = write(sample());
+        byte[] truncated = new byte[data.length - 3];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+
+        read(truncated);
+    }
+
+    @Test
+    public void keepsNullKeysAndValues() throws IOException {
+        Event e = read(write(sample())).get(3);
+
+        assertNull(e.key);
+        assertNull(e.segmentation.value(0));
+    }
+}
@@ -0,0 +1,161 @@
+package ly.count.android.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class RequestCompactorTest {
+    private static final String SENDER = "app_key=app&device_id=device";
+    // Start of an hour close enough to the end of int timestamps that summing
+    // two of them overflows.
+    private static final int HOUR = 2147482800;
+
+    private static String update(int timestamp, int duration) {
+        return SENDER + "&timestamp=" + timestamp + "&session_duration=" + duration;
+    }
+
+    private static String begin(int timestamp) {
+        return SENDER + "&timestamp=" + timestamp + "&sdk_version=2.0&begin_session=1&metrics=%7B%7D";
+    }
+
+    private static String events(String sender, int timestamp, Event... events) throws UnsupportedEncodingException {
+        JSONArray array = new JSONArray();
+        for (Event e : events) array.put(CountlyStore.eventToJSON(e));
+        return sender + "&timestamp=" + timestamp + "&events=" + URLEncoder.encode(array.toString(), "UTF-8");
+    }
+
+    private static String events(int timestamp, Event... events) throws UnsupportedEncodingException {
+        return events(SENDER, timestamp, events);
+    }
+
+    private static Event event(String key, int count, double sum, int timestamp) {
+        Event event = new Event();
+        event.key = key;
+        event.count = count;
+        event.sum = sum;
+        event.timestamp = timestamp;
+        return event;
+    }
+
+    private static List<JSONObject> decodeEvents(String request) throws Exception {
+        String encoded = request.substring(request.indexOf("&events=") + "&events=".length());
+        JSONArray array = new JSONArray(URLDecoder.decode(encoded, "UTF-8"));
+        List<JSONObject> events = new ArrayList<JSONObject>();
+        for (int i = 0; i < array.length(); i++) events.add(array.getJSONObject(i));
+        return events;
+    }
+
+    private static String padding(int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+
+    @Test
+    public void leavesUnmergeableBacklogAlone() {
+        List<String> requests = Arrays.asList(begin(1), update(2, 60), begin(3));
+
+        assertEquals(requests, RequestCompactor.compact(requests));
+    }
+
+    @Test
+    public void sumsSessionUpdatesBetweenBarriers() {
+        List<String> compacted = RequestCompactor.compact(Arrays.asList(
+                update(1, 10), update(2, 20), begin(3), update(4, 5), update(5, 5)));
+
+        assertEquals(Arrays.asList(update(2, 30), begin(3), update(5, 10)), compacted);
+    }
+
+    @Test
+    public void keepsSendersApart() {
+        String other = "app_key=app&device_id=other&timestamp=2&session_duration=20";
+        List<String> requests = Arrays.asList(update(1, 10), other);
+
+        assertEquals(requests, RequestCompactor.compact(requests));
+    }
+
+    @Test
+    public void aggregatesEventsByKeyWithinTheHour() throws Exception {
+        List<String> compacted = RequestCompactor.compact(Arrays.asList(
+                events(HOUR + 10, event("a", 1, 1.5, HOUR + 100), event("b", 1, 0, HOUR + 100)),
+                events(HOUR + 20, event("a", 2, 2.5, HOUR + 300)),
+                events(HOUR + 30, event("a", 4, 0, HOUR + 3600))));
+
+        assertEquals(1, compacted.size());
+        assertTrue(compacted.get(0).startsWith(SENDER + "&timestamp=" + (HOUR + 30) + "&events="));
+
+        List<JSONObject> events = decodeEvents(compacted.get(0));
+        assertEquals(3, events.size());
+
+        assertEquals("a", events.get(0).getString("key"));
+        assertEquals(3, events.get(0).getInt("count"));
+        assertEquals(4.0, events.get(0).getDouble("sum"), 0);
+        // Averaged without overflowing.
+        assertEquals(HOUR + 200, events.get(0).getInt("timestamp"));
+
+        assertEquals("b", events.get(1).getString("key"));
+        assertEquals(1, events.get(1).getInt("count"));
+
+        // The next hour is counted on its own.
+        assertEquals("a", events.get(2).getString("key"));
+        assertEquals(4, events.get(2).getInt("count"));
+        assertEquals(HOUR + 3600, events.get(2).getInt("timestamp"));
+    }
+
+    @Test
+    public void keepsEventsOnEitherSideOfABarrierApart() throws Exception {
+        List<String> compacted = RequestCompactor.compact(Arrays.asList(
+                events(1, event("a", 1, 0, 1)),
+                begin(2),
+                events(3, event("a", 1, 0, 3)),
+                events(4, event("a", 1, 0, 4))));
+
+        assertEquals(3, compacted.size());
+        assertEquals(begin(2), compacted.get(1));
+        assertEquals(1, decodeEvents(compacted.get(0)).get(0).getInt("count"));
+        assertEquals(2, decodeEvents(compacted.get(2)).get(0).getInt("count"));
+    }
+
+    @Test
+    public void stopsMergingEventsAtTheLengthCap() throws Exception {
+        // Distinct keys don't aggregate, so each upload adds its full length.
+        String padding = padding(RequestCompactor.MAX_EVENTS_LENGTH / 3);
+        List<String> requests = new ArrayList<String>();
+        for (int i = 0; i < 4; i++) requests.add(events(i, event(padding + i, 1, 0, i)));
+
+        List<String> compacted = RequestCompactor.compact(requests);
+
+        assertEquals(2, compacted.size());
+        for (String request : compacted) {
+            assertEquals(2, decodeEvents(request).size());
+            String encoded = request.substring(request.indexOf("&events=") + "&events=".length());
+            assertTrue(encoded.length() <= RequestCompactor.MAX_EVENTS_LENGTH);
+        }
+    }
+
+    @Test
+    public void treatsUndecodableEventsAsABarrier() throws Exception {
+        String broken = SENDER + "&timestamp=2&events=not-json";
+        List<String> compacted = RequestCompactor.compact(Arrays.asList(
+                events(1, event("a", 1, 0, 1)), broken, events(3, event("a", 1, 0, 3))));
+
+        assertEquals(3, compacted.size());
+        assertEquals(broken, compacted.get(1));
+    }
+
+    @Test
+    public void emptyBacklogStaysEmpty() {
+        assertEquals(Collections.<String>emptyList(), RequestCompactor.compact(Collections.<String>emptyList()));
+    }
+}
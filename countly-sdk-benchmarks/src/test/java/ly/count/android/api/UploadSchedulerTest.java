@@ -0,0 +1,202 @@
+package ly.count.android.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.content.Context;
+
+public class UploadSchedulerTest {
+    private Context context_;
+    private CountlyStore store_;
+    private LocalUploadHost host_;
+    private final AtomicInteger uploads_ = new AtomicInteger();
+    private UploadScheduler scheduler_;
+
+    @Before
+    public void setUp() {
+        context_ = new Context();
+        store_ = new CountlyStore(context_);
+        host_ = new LocalUploadHost();
+        scheduler_ = newScheduler(host_);
+    }
+
+    @After
+    public void tearDown() {
+        host_.cancelWakeUp();
+        BenchmarkSupport.delete(context_);
+    }
+
+    private UploadScheduler newScheduler(UploadHost host) {
+        return new UploadScheduler(host, store_, new Runnable() {
+            @Override
+            public void run() {
+                uploads_.incrementAndGet();
+            }
+        });
+    }
+
+    private void queue(int count) {
+        for (int i = 0; i < count; i++) store_.addConnection(BenchmarkSupport.request(i));
+    }
+
+    @Test
+    public void releasesBacklogRightAwayByDefault() {
+        queue(1);
+        scheduler_.evaluate();
+
+        assertEquals(1, uploads_.get());
+        assertEquals(0, host_.wakeUpTime());
+        assertEquals(0, store_.uploadDue());
+    }
+
+    @Test
+    public void emptyBacklogIsNotReleased() {
+        scheduler_.evaluate();
+
+        assertEquals(0, uploads_.get());
+        assertEquals(0, host_.wakeUpTime());
+    }
+
+    @Test
+    public void holdsBacklogUntilMinBatchSize() {
+        scheduler_.setConstraints(false, 3, 60 * 1000);
+        long before = System.currentTimeMillis();
+
+        queue(2);
+        scheduler_.evaluate();
+
+        assertEquals(0, uploads_.get());
+        long due = host_.wakeUpTime();
+        assertTrue(due >= before + 60 * 1000);
+        assertEquals(due, store_.uploadDue());
+
+        queue(1);
+        scheduler_.evaluate();
+
+        assertEquals(1, uploads_.get());
+        assertEquals(0, host_.wakeUpTime());
+        assertEquals(0, store_.uploadDue());
+    }
+
+    @Test
+    public void releasesBacklogAfterMaxDelay() throws InterruptedException {
+        scheduler_.setConstraints(false, 100, 50);
+
+        queue(1);
+        scheduler_.evaluate();
+        assertEquals(0, uploads_.get());
+
+        Thread.sleep(500);
+
+        assertEquals(1, uploads_.get());
+    }
+
+    @Test
+    public void holdsBacklogWhileOfflineWithoutPushingBackTheRecheck() throws InterruptedException {
+        host_.setConnectivity(false, false);
+        long before = System.currentTimeMillis();
+
+        queue(1);
+        scheduler_.evaluate();
+
+        assertEquals(0, uploads_.get());
+        long recheck = host_.wakeUpTime();
+        assertTrue(recheck >= before + UploadScheduler.OFFLINE_RECHECK_INTERVAL);
+
+        Thread.sleep(10);
+        queue(1);
+        scheduler_.evaluate();
+
+        assertEquals(recheck, host_.wakeUpTime());
+
+        host_.setConnectivity(true, false);
+
+        assertEquals(1, uploads_.get());
+        assertEquals(0, host_.wakeUpTime());
+    }
+
+    @Test
+    public void unmeteredOnlyWaitsForUnmeteredNetwork() {
+        scheduler_.setConstraints(true, 1, 0);
+        host_.setConnectivity(true, true);
+
+        queue(1);
+        scheduler_.evaluate();
+        assertEquals(0, uploads_.get());
+
+        host_.setConnectivity(true, false);
+        assertEquals(1, uploads_.get());
+    }
+
+    @Test
+    public void failedUploadSchedulesRetryWakeUp() {
+        long retry = System.currentTimeMillis() + 5000;
+        scheduler_.onUploadFailed(retry);
+
+        assertEquals(retry, host_.wakeUpTime());
+        assertEquals(retry, store_.uploadDue());
+    }
+
+    @Test
+    public void queueingDuringBackoffKeepsRetryWakeUp() {
+        queue(1);
+        long retry = System.currentTimeMillis() + 5000;
+        scheduler_.onUploadFailed(retry);
+
+        queue(1);
+        scheduler_.evaluate();
+
+        assertEquals(1, uploads_.get());
+        assertEquals(retry, host_.wakeUpTime());
+        assertEquals(retry, store_.uploadDue());
+    }
+
+    @Test
+    public void heldBacklogWakesUpForTheLaterOfRetryAndDelay() {
+        scheduler_.setConstraints(false, 10, 60 * 1000);
+        queue(1);
+        long retry = System.currentTimeMillis() + 5000;
+        scheduler_.onUploadFailed(retry);
+
+        scheduler_.evaluate();
+
+        assertEquals(0, uploads_.get());
+        assertTrue(host_.wakeUpTime() >= retry + 50 * 1000);
+    }
+
+    @Test
+    public void drainedBacklogCancelsWakeUp() {
+        scheduler_.setConstraints(false, 10, 60 * 1000);
+        queue(1);
+        scheduler_.evaluate();
+        assertTrue(host_.wakeUpTime() != 0);
+
+        scheduler_.onDrained();
+
+        assertEquals(0, host_.wakeUpTime());
+        assertEquals(0, store_.uploadDue());
+    }
+
+    @Test
+    public void newProcessReschedulesPersistedWakeUp() {
+        scheduler_.setConstraints(false, 10, 60 * 1000);
+        queue(1);
+        scheduler_.evaluate();
+        long due = store_.uploadDue();
+        assertTrue(due != 0);
+
+        LocalUploadHost restarted = new LocalUploadHost();
+        try {
+            newScheduler(restarted);
+            assertEquals(due, restarted.wakeUpTime());
+        } finally {
+            restarted.cancelWakeUp();
+        }
+    }
+}